@@ -16,6 +16,7 @@ public class CopyLocation {
     private float mX, mY; // 当前位置
 
     private Paint mPaint;
+    private final float[] mTempCoords = new float[2];
 
     private boolean mIsRelocating = true; // 正在定位中
     private boolean mIsCopying = false; // 正在仿制绘图中
@@ -39,6 +40,14 @@ public class CopyLocation {
     }
 
 
+    public float getX() {
+        return mX;
+    }
+
+    public float getY() {
+        return mY;
+    }
+
     public float getTouchStartX() {
         return mTouchStartX;
     }
@@ -121,18 +130,19 @@ public class CopyLocation {
 
     public void rotatePosition(int originalDegree, int mRotateDegree, float mOriginalPivotX, float mOriginalPivotY) {
         // 旋转仿制图标的位置
-        float[] coords = rotatePointInGraffiti(mRotateDegree, originalDegree, this.mX,
-                this.mY, mOriginalPivotX, mOriginalPivotY);
+        float[] coords = mTempCoords;
+        rotatePointInGraffiti(mRotateDegree, originalDegree, this.mX,
+                this.mY, mOriginalPivotX, mOriginalPivotY, coords);
         this.mX = coords[0];
         this.mY = coords[1];
 
-        coords = rotatePointInGraffiti(mRotateDegree, originalDegree, this.mCopyStartX,
-                this.mCopyStartY, mOriginalPivotX, mOriginalPivotY);
+        rotatePointInGraffiti(mRotateDegree, originalDegree, this.mCopyStartX,
+                this.mCopyStartY, mOriginalPivotX, mOriginalPivotY, coords);
         this.mCopyStartX = coords[0];
         this.mCopyStartY = coords[1];
 
-        coords = rotatePointInGraffiti(mRotateDegree, originalDegree, this.mTouchStartX,
-                this.mTouchStartY, mOriginalPivotX, mOriginalPivotY);
+        rotatePointInGraffiti(mRotateDegree, originalDegree, this.mTouchStartX,
+                this.mTouchStartY, mOriginalPivotX, mOriginalPivotY, coords);
         this.mTouchStartX = coords[0];
         this.mTouchStartY = coords[1];
     }
@@ -4,8 +4,6 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Path;
 
-import cn.forward.androids.utils.LogUtil;
-
 /**
  * Created by Administrator on 2016/9/3.
  */
@@ -133,13 +131,20 @@ public class DrawUtil {
             angle = 360 + angle;
         }
 
-        LogUtil.i("hzw", "[" + px1 + "," + py1 + "]:[" + px2 + "," + py2 + "] = " + angle);
-
         return angle;
     }
 
     // xy为在涂鸦中旋转后的坐标，该函数逆向计算出未旋转前的坐标
     public static float[] restoreRotatePointInGraffiti(int nowDegree, int oldDegree, float x, float y, float mOriginalPivotX, float mOriginalPivotY) {
+        float[] coords = new float[2];
+        restoreRotatePointInGraffiti(nowDegree, oldDegree, x, y, mOriginalPivotX, mOriginalPivotY, coords);
+        return coords;
+    }
+
+    /**
+     * 与{@link #restoreRotatePointInGraffiti(int, int, float, float, float, float)}相同，结果写入out，不分配内存
+     */
+    public static void restoreRotatePointInGraffiti(int nowDegree, int oldDegree, float x, float y, float mOriginalPivotX, float mOriginalPivotY, float[] out) {
         int degree = nowDegree - oldDegree;
         if (degree != 0) {
             float px = mOriginalPivotX, py = mOriginalPivotY;
@@ -153,26 +158,61 @@ public class DrawUtil {
                 y -= -(py - px);
             }
 
-            float[] coords = rotatePoint(-degree, x,
-                    y, px, py);
-
-            return coords;
+            rotatePoint(-degree, x, y, px, py, out);
+            return;
         }
-        return new float[]{x, y};
+        out[0] = x;
+        out[1] = y;
     }
 
     // 顺时针旋转
     public static float[] rotatePoint(int degree, float x, float y, float px, float py) {
         float[] coords = new float[2];
-        /*角度变成弧度*/
-        float radian = (float) (degree * Math.PI / 180);
-        coords[0] = (float) ((x - px) * Math.cos(radian) - (y - py) * Math.sin(radian) + px);
-        coords[1] = (float) ((x - px) * Math.sin(radian) + (y - py) * Math.cos(radian) + py);
-
+        rotatePoint(degree, x, y, px, py, coords);
         return coords;
     }
 
+    /**
+     * 绕(px,py)顺时针旋转，结果写入out，不分配内存。90度的倍数直接交换坐标，没有三角函数的误差
+     */
+    public static void rotatePoint(int degree, float x, float y, float px, float py, float[] out) {
+        float dx = x - px, dy = y - py;
+        switch ((degree % 360 + 360) % 360) {
+            case 0:
+                out[0] = x;
+                out[1] = y;
+                break;
+            case 90:
+                out[0] = -dy + px;
+                out[1] = dx + py;
+                break;
+            case 180:
+                out[0] = -dx + px;
+                out[1] = -dy + py;
+                break;
+            case 270:
+                out[0] = dy + px;
+                out[1] = -dx + py;
+                break;
+            default:
+                /*角度变成弧度*/
+                double radian = degree * Math.PI / 180;
+                float cos = (float) Math.cos(radian), sin = (float) Math.sin(radian);
+                out[0] = dx * cos - dy * sin + px;
+                out[1] = dx * sin + dy * cos + py;
+        }
+    }
+
     public static float[] rotatePointInGraffiti(int nowDegree, int oldDegree, float x, float y, float mOriginalPivotX, float mOriginalPivotY) {
+        float[] coords = new float[2];
+        rotatePointInGraffiti(nowDegree, oldDegree, x, y, mOriginalPivotX, mOriginalPivotY, coords);
+        return coords;
+    }
+
+    /**
+     * 与{@link #rotatePointInGraffiti(int, int, float, float, float, float)}相同，结果写入out，不分配内存
+     */
+    public static void rotatePointInGraffiti(int nowDegree, int oldDegree, float x, float y, float mOriginalPivotX, float mOriginalPivotY, float[] out) {
         int degree = nowDegree - oldDegree;
         if (degree != 0) {
             float px = mOriginalPivotX, py = mOriginalPivotY;
@@ -182,15 +222,15 @@ public class DrawUtil {
                 py = t;
             }
 
-            float[] coords = rotatePoint(degree, x,
-                    y, px, py); // 绕（px,py）旋转
+            rotatePoint(degree, x, y, px, py, out); // 绕（px,py）旋转
             if (Math.abs(degree) == 90 || Math.abs(degree) == 270) { // 偏移
-                coords[0] += (py - px);
-                coords[1] += -(py - px);
+                out[0] += (py - px);
+                out[1] += -(py - px);
             }
-            return coords;
+            return;
         }
-        return new float[]{x, y};
+        out[0] = x;
+        out[1] = y;
     }
 
     /**
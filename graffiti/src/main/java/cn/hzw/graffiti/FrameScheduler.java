@@ -0,0 +1,100 @@
+package cn.hzw.graffiti;
+
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * 按屏幕刷新（vsync）的节奏安排每一帧的工作
+ * 多次请求在同一帧内只会回调一次；API 16以上使用Choreographer，之前的版本用Handler按约16ms的间隔模拟。
+ * 只能在主线程中使用。
+ */
+class FrameScheduler {
+
+    private static final long FALLBACK_FRAME_DELAY = 16; // 没有Choreographer时的帧间隔（毫秒）
+
+    interface Callback {
+        /**
+         * 每一帧回调一次
+         *
+         * @param frameTimeNanos 该帧开始的时间，与{@link System#nanoTime()}同一时间基准
+         */
+        void doFrame(long frameTimeNanos);
+    }
+
+    private final Callback mCallback;
+    private boolean mIsScheduled;
+    private VsyncCallback mVsyncCallback; // 只在API 16以上创建，避免低版本加载Choreographer
+    private Handler mHandler;
+    private Runnable mFallbackRunnable;
+
+    FrameScheduler(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * 安排在下一帧回调，已安排时忽略
+     */
+    void schedule() {
+        if (mIsScheduled) {
+            return;
+        }
+        mIsScheduled = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (mVsyncCallback == null) {
+                mVsyncCallback = new VsyncCallback(this);
+            }
+            Choreographer.getInstance().postFrameCallback(mVsyncCallback);
+        } else {
+            if (mHandler == null) {
+                mHandler = new Handler(Looper.getMainLooper());
+                mFallbackRunnable = new Runnable() {
+                    @Override
+                    public void run() {
+                        dispatchFrame(System.nanoTime());
+                    }
+                };
+            }
+            mHandler.postDelayed(mFallbackRunnable, FALLBACK_FRAME_DELAY);
+        }
+    }
+
+    /**
+     * 取消已安排的回调
+     */
+    void cancel() {
+        if (!mIsScheduled) {
+            return;
+        }
+        mIsScheduled = false;
+        if (mVsyncCallback != null) {
+            Choreographer.getInstance().removeFrameCallback(mVsyncCallback);
+        }
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mFallbackRunnable);
+        }
+    }
+
+    boolean isScheduled() {
+        return mIsScheduled;
+    }
+
+    private void dispatchFrame(long frameTimeNanos) {
+        mIsScheduled = false; // 回调中可以再次安排下一帧
+        mCallback.doFrame(frameTimeNanos);
+    }
+
+    private static class VsyncCallback implements Choreographer.FrameCallback {
+        private final FrameScheduler mScheduler;
+
+        VsyncCallback(FrameScheduler scheduler) {
+            mScheduler = scheduler;
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mScheduler.dispatchFrame(frameTimeNanos);
+        }
+    }
+}
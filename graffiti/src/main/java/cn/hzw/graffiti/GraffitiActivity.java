@@ -13,6 +13,7 @@ import android.os.PersistableBundle;
 import android.text.Editable;
 import android.text.TextUtils;
 import android.text.TextWatcher;
+import android.view.Gravity;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
 import android.view.View;
@@ -34,7 +35,6 @@ import java.util.List;
 import cn.forward.androids.utils.ImageUtils;
 import cn.forward.androids.utils.LogUtil;
 import cn.forward.androids.utils.StatusBarUtil;
-import cn.forward.androids.utils.ThreadUtil;
 import cn.hzw.graffiti.imagepicker.ImageSelectorView;
 
 /**
@@ -108,10 +108,9 @@ public class GraffitiActivity extends Activity {
 
     private boolean mIsMovingPic = false; // 是否是平移缩放模式
 
-    private boolean mIsScaling;
     private final float mMaxScale = 4f; // 最大缩放倍数
     private final float mMinScale = 0.25f; // 最小缩放倍数
-    private final int TIME_SPAN = 40;
+    private final float SCALE_SPEED = 1.25f; // 按住缩放按钮时每秒缩放倍数的变化
 
     private View mBtnMovePic, mBtnHidePanel, mSettingsPanel;
     private View mShapeModeContainer;
@@ -281,7 +280,27 @@ public class GraffitiActivity extends Activity {
                 });
 
         mGraffitiView.setIsDrawableOutside(mGraffitiParams.mIsDrawableOutside);
+        mGraffitiView.setRenderMode(mGraffitiParams.mRenderMode);
+        mGraffitiView.setDraftRefineDelay(mGraffitiParams.mDraftRefineDelay);
+        if (mGraffitiParams.mIsRenderThread) { // 位于涂鸦之下，在单独的线程中绘制
+            GraffitiSurfaceView renderSurface = new GraffitiSurfaceView(this);
+            renderSurface.setClearColor(0xff232323); // 与布局的背景色一致
+            mFrameLayout.addView(renderSurface, ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT);
+            mGraffitiView.setRenderSurface(renderSurface);
+        }
         mFrameLayout.addView(mGraffitiView, ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT);
+        if (mGraffitiParams.mIsLowLatency) { // 覆盖在涂鸦之上，绘制正在绘制的笔画
+            StrokeOverlayView strokeOverlay = new StrokeOverlayView(this);
+            mFrameLayout.addView(strokeOverlay, ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.MATCH_PARENT);
+            mGraffitiView.setStrokeOverlay(strokeOverlay);
+        }
+        // 右上角的导航小地图，放大后显示当前可见的范围
+        NavigatorView navigator = new NavigatorView(this);
+        int navigatorSize = (int) (120 * getResources().getDisplayMetrics().density);
+        FrameLayout.LayoutParams navigatorParams = new FrameLayout.LayoutParams(navigatorSize, navigatorSize, Gravity.TOP | Gravity.RIGHT);
+        navigatorParams.topMargin = navigatorParams.rightMargin = navigatorSize / 10;
+        mFrameLayout.addView(navigator, navigatorParams);
+        mGraffitiView.setNavigator(navigator);
         mOnClickListener = new GraffitiOnClickListener();
         mTouchGestureDetector = new TouchGestureDetector(this, new GraffitiGestureListener());
 
@@ -546,6 +565,10 @@ public class GraffitiActivity extends Activity {
                 }
                 // 处理手势
                 mTouchGestureDetector.onTouchEvent(event);
+                int action = event.getAction() & MotionEvent.ACTION_MASK;
+                if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+                    mGraffitiView.stopGesture(); // 手指全部离开后完整绘制
+                }
                 return true;
             }
         });
@@ -667,10 +690,12 @@ public class GraffitiActivity extends Activity {
                                 @Override
                                 public void colorChanged(Drawable color) {
                                     mBtnColor.setBackgroundDrawable(color);
+                                    // 画笔底图只解码一次，与着色器一起缓存
+                                    Bitmap brush = ShaderCache.getBrushBitmap(color);
                                     if (mGraffitiView.isSelectedItem()) {
-                                        mGraffitiView.setSelectedItemColor(ImageUtils.getBitmapFromDrawable(color));
+                                        mGraffitiView.setSelectedItemColor(brush);
                                     } else {
-                                        mGraffitiView.setColor(ImageUtils.getBitmapFromDrawable(color));
+                                        mGraffitiView.setColor(brush);
                                     }
                                 }
                             }).show();
@@ -793,15 +818,15 @@ public class GraffitiActivity extends Activity {
             switch (event.getAction() & MotionEvent.ACTION_MASK) {
                 case MotionEvent.ACTION_DOWN:
                     if (v.getId() == R.id.btn_amplifier) {
-                        scalePic(0.05f);
+                        scalePic(SCALE_SPEED);
                     } else if (v.getId() == R.id.btn_reduce) {
-                        scalePic(-0.05f);
+                        scalePic(-SCALE_SPEED);
                     }
                     v.setSelected(true);
                     break;
                 case MotionEvent.ACTION_UP:
                 case MotionEvent.ACTION_CANCEL:
-                    mIsScaling = false;
+                    mGraffitiView.stopScaling();
                     v.setSelected(false);
                     break;
             }
@@ -810,40 +835,16 @@ public class GraffitiActivity extends Activity {
     }
 
     /**
-     * 缩放
+     * 缩放，由GraffitiView按帧推进，直到松开按钮
      *
-     * @param scaleStep 缩放步进
+     * @param speed 每秒缩放倍数的变化
      */
-    private void scalePic(final float scaleStep) {
-        if (mIsScaling)
+    private void scalePic(float speed) {
+        if (mGraffitiView.isScaling()) {
             return;
-        mIsScaling = true;
-
-        final float x = mGraffitiView.toX(mGraffitiView.getWidth() / 2);
-        final float y = mGraffitiView.toY(mGraffitiView.getHeight() / 2);
-
-        final Runnable task = new Runnable() {
-            public void run() {
-                if (!mIsScaling)
-                    return;
-                float scale = mGraffitiView.getScale();
-                scale += scaleStep;
-                if (scale > mMaxScale) {
-                    scale = mMaxScale;
-                    mIsScaling = false;
-                } else if (scale < mMinScale) {
-                    scale = mMinScale;
-                    mIsScaling = false;
-                }
-                // 围绕屏幕中心缩放
-                mGraffitiView.setScale(scale, x, y);
-
-                if (mIsScaling) {
-                    ThreadUtil.getInstance().runOnMainThread(this, TIME_SPAN);
-                }
-            }
-        };
-        task.run();
+        }
+        // 围绕屏幕中心缩放
+        mGraffitiView.startScaling(speed, mMinScale, mMaxScale);
     }
 
 
@@ -889,12 +890,14 @@ public class GraffitiActivity extends Activity {
 
         @Override
         public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+            mGraffitiView.startGesture(); // 移动期间只变换开始时的画面
             mGraffitiView.setTrans(mGraffitiView.getTransX() - distanceX, mGraffitiView.getTransY() - distanceY);
             return true;
         }
 
         @Override
         public boolean onScaleBegin(ScaleGestureDetector detector) {
+            mGraffitiView.startGesture(); // 缩放期间只变换开始时的画面
             mLastFocusX = null;
             mLastFocusY = null;
             return true;
@@ -23,9 +23,11 @@ public class GraffitiBitmap extends GraffitiSelectableItem {
         resetBounds(getBounds());
     }
 
-    public void setBitmap(Bitmap bitmap) {
+    public synchronized void setBitmap(Bitmap bitmap) {
         mBitmap = bitmap;
         resetBounds(getBounds());
+        onBoundsChanged();
+        onContentChanged();
     }
 
     public Bitmap getBitmap() {
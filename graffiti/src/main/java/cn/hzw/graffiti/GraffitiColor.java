@@ -20,6 +20,7 @@ public class GraffitiColor {
     private Type mType;
     private Shader.TileMode mTileX = Shader.TileMode.MIRROR;
     private Shader.TileMode mTileY = Shader.TileMode.MIRROR;  // 镜像
+    private BitmapShader mShader; // 底图的着色器，底图或平铺方式改变时重新创建
 
     public GraffitiColor(int color) {
         mType = Type.COLOR;
@@ -42,9 +43,11 @@ public class GraffitiColor {
         if (mType == Type.COLOR) {
             paint.setColor(mColor);
         } else if (mType == Type.BITMAP) {
-            BitmapShader shader = new BitmapShader(mBitmap, mTileX, mTileY);
-            shader.setLocalMatrix(matrix);
-            paint.setShader(shader);
+            if (mShader == null) {
+                mShader = new BitmapShader(mBitmap, mTileX, mTileY);
+            }
+            mShader.setLocalMatrix(matrix);
+            paint.setShader(mShader);
         }
     }
 
@@ -56,6 +59,7 @@ public class GraffitiColor {
     public void setColor(Bitmap bitmap) {
         mType = Type.BITMAP;
         mBitmap = bitmap;
+        mShader = null;
     }
 
     public void setColor(Bitmap bitmap, Shader.TileMode tileX, Shader.TileMode tileY) {
@@ -63,6 +67,7 @@ public class GraffitiColor {
         mBitmap = bitmap;
         mTileX = tileX;
         mTileY = tileY;
+        mShader = null;
     }
 
     public int getColor() {
@@ -77,6 +82,14 @@ public class GraffitiColor {
         return mType;
     }
 
+    Shader.TileMode getTileX() {
+        return mTileX;
+    }
+
+    Shader.TileMode getTileY() {
+        return mTileY;
+    }
+
     public GraffitiColor copy() {
         GraffitiColor color = null;
         if (mType == Type.COLOR) {
@@ -86,6 +99,7 @@ public class GraffitiColor {
         }
         color.mTileX = mTileX;
         color.mTileY = mTileY;
+        color.mShader = mShader;
         return color;
     }
 }
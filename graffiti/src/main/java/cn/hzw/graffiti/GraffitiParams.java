@@ -67,6 +67,34 @@ public class GraffitiParams implements Parcelable {
      */
     public float mPaintSize = -1;
 
+    /**
+     * 是否开启低延迟模式，开启后正在绘制的笔画在单独的覆盖层上立即绘制，适合手写笔
+     * 默认为false
+     * {@link GraffitiView#setStrokeOverlay(StrokeOverlayView)}
+     */
+    public boolean mIsLowLatency = false;
+
+    /**
+     * 绘制方式，为{@link GraffitiView.RenderMode#HARDWARE}时使用硬件加速合成原图、涂鸦和文字贴图
+     * 默认为{@link GraffitiView.RenderMode#SOFTWARE}
+     */
+    public GraffitiView.RenderMode mRenderMode = GraffitiView.RenderMode.SOFTWARE;
+
+    /**
+     * 是否在单独的线程中绘制涂鸦，开启后路径的绘制和撤销时的重绘不再占用主线程，适合路径很多的大图
+     * 默认为false
+     * {@link GraffitiView#setRenderSurface(GraffitiSurfaceView)}
+     */
+    public boolean mIsRenderThread = false;
+
+    /**
+     * 草稿画质的刷新延时(ms)，当小于等于0时始终以完整画质绘制;当大于0时，手指按下或手势期间不做抗锯齿和图片过滤，放大器降低分辨率，
+     * 输入停止超过该时间后以完整画质重新绘制一帧，适合低端设备
+     * 默认为0
+     * {@link GraffitiView#setDraftRefineDelay(long)}
+     */
+    public long mDraftRefineDelay = 0; //ms
+
     public static final Creator<GraffitiParams> CREATOR = new Creator<GraffitiParams>() {
         @Override
         public GraffitiParams createFromParcel(Parcel in) {
@@ -81,6 +109,10 @@ public class GraffitiParams implements Parcelable {
             params.mAmplifierScale = in.readFloat();
             params.mIsFullScreen = in.readInt() == 1;
             params.mPaintSize = in.readFloat();
+            params.mIsLowLatency = in.readInt() == 1;
+            params.mRenderMode = GraffitiView.RenderMode.valueOf(in.readString());
+            params.mIsRenderThread = in.readInt() == 1;
+            params.mDraftRefineDelay = in.readLong();
 
             return params;
         }
@@ -103,6 +135,10 @@ public class GraffitiParams implements Parcelable {
         dest.writeFloat(mAmplifierScale);
         dest.writeInt(mIsFullScreen ? 1 : 0);
         dest.writeFloat(mPaintSize);
+        dest.writeInt(mIsLowLatency ? 1 : 0);
+        dest.writeString(mRenderMode.name());
+        dest.writeInt(mIsRenderThread ? 1 : 0);
+        dest.writeLong(mDraftRefineDelay);
     }
 
     @Override
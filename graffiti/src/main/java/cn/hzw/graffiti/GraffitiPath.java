@@ -2,9 +2,7 @@ package cn.hzw.graffiti;
 
 import android.graphics.Matrix;
 import android.graphics.Path;
-
-import static cn.hzw.graffiti.DrawUtil.rotatePoint;
-import static cn.hzw.graffiti.DrawUtil.rotatePointInGraffiti;
+import android.graphics.RectF;
 
 /**
  * Created by huangziwei on 2017/3/16.
@@ -23,71 +21,173 @@ public class GraffitiPath implements Undoable {
     float mPivotX, mPivotY;
     CopyLocation mCopy;
 
-    public Path getPath(int currentDegree) {
-        int degree = currentDegree - mRotateDegree;
+    // 以下缓存只在路径所在的旋转角度之外被查询时才会分配
+    private Matrix mRotateMatrix; // 从绘制时的坐标系旋转到mRotateMatrixDegree的变换
+    private int mRotateMatrixDegree = Integer.MIN_VALUE;
+    private Path mRotatedPath; // 旋转到mRotatedPathDegree后的路径
+    private int mRotatedPathDegree = Integer.MIN_VALUE;
+    private volatile RectF mBounds; // 绘制时的坐标系中覆盖的范围，路径加入后不再改变，第一次计算时缓存
+
+    /**
+     * 计算从路径绘制时的坐标系（rotateDegree）旋转到当前坐标系（currentDegree）的变换，图片绕中心旋转
+     */
+    static void computeRotateMatrix(int currentDegree, int rotateDegree, float pivotX, float pivotY, Matrix matrix) {
+        int degree = currentDegree - rotateDegree;
         if (degree == 0) {
-            return mPath;
+            matrix.reset();
+            return;
         }
-        Path path = new Path(mPath);
-        Matrix matrix = new Matrix();
-
-        float px = mPivotX, py = mPivotY;
-        if (mRotateDegree == 90 || mRotateDegree == 270) { //　交换中心点的xy坐标
+        float px = pivotX, py = pivotY;
+        if (rotateDegree == 90 || rotateDegree == 270) { //　交换中心点的xy坐标
             float t = px;
             px = py;
             py = t;
         }
-
         matrix.setRotate(degree, px, py);
         if (Math.abs(degree) == 90 || Math.abs(degree) == 270) {
             matrix.postTranslate((py - px), -(py - px));
         }
-        path.transform(matrix);
-        return path;
+    }
+
+    /**
+     * 从路径绘制时的坐标系旋转到currentDegree的变换，按角度缓存
+     *
+     * @return 角度与绘制时相同时返回null
+     */
+    Matrix getRotateMatrix(int currentDegree) {
+        if (currentDegree == mRotateDegree) {
+            return null;
+        }
+        if (mRotateMatrixDegree != currentDegree) {
+            if (mRotateMatrix == null) {
+                mRotateMatrix = new Matrix();
+            }
+            computeRotateMatrix(currentDegree, mRotateDegree, mPivotX, mPivotY, mRotateMatrix);
+            mRotateMatrixDegree = currentDegree;
+        }
+        return mRotateMatrix;
+    }
+
+    /**
+     * 旋转到currentDegree后的路径，按角度缓存，返回的路径不能修改
+     */
+    public Path getPath(int currentDegree) {
+        Matrix matrix = getRotateMatrix(currentDegree);
+        if (matrix == null) {
+            return mPath;
+        }
+        if (mRotatedPathDegree != currentDegree) {
+            if (mRotatedPath == null) {
+                mRotatedPath = new Path();
+            }
+            mPath.transform(matrix, mRotatedPath);
+            mRotatedPathDegree = currentDegree;
+        }
+        return mRotatedPath;
     }
 
     public float[] getDxDy(int currentDegree) {
+        return getDxDy(currentDegree, new float[2]);
+    }
 
-        return rotatePointInGraffiti(currentDegree, mRotateDegree, mDx, mDy, mPivotX, mPivotY);
+    /**
+     * 终止坐标旋转到currentDegree后的位置，结果写入xy，不分配内存
+     *
+     * @return xy
+     */
+    public float[] getDxDy(int currentDegree, float[] xy) {
+        return mapPoint(currentDegree, mDx, mDy, xy);
     }
 
     public float[] getSxSy(int currentDegree) {
+        return getSxSy(currentDegree, new float[2]);
+    }
 
-        return rotatePointInGraffiti(currentDegree, mRotateDegree, mSx, mSy, mPivotX, mPivotY);
+    /**
+     * 起始坐标旋转到currentDegree后的位置，结果写入xy，不分配内存
+     *
+     * @return xy
+     */
+    public float[] getSxSy(int currentDegree, float[] xy) {
+        return mapPoint(currentDegree, mSx, mSy, xy);
     }
 
+    private float[] mapPoint(int currentDegree, float x, float y, float[] xy) {
+        xy[0] = x;
+        xy[1] = y;
+        Matrix matrix = getRotateMatrix(currentDegree);
+        if (matrix != null) {
+            matrix.mapPoints(xy);
+        }
+        return xy;
+    }
+
+    /**
+     * 仿制时，当前坐标系中的画笔相对于原图的偏移
+     */
     public Matrix getMatrix(int currentDegree) {
         if (mMatrix == null) {
             return null;
         }
-        if (mPen == GraffitiView.Pen.COPY) { // 仿制，加上mCopyLocation记录的偏移
-            mMatrix.reset();
+        return getMatrix(currentDegree, mMatrix);
+    }
 
+    /**
+     * 仿制时，当前坐标系中的画笔相对于原图的偏移，结果写入matrix，不修改路径本身，可以在多个线程中同时调用
+     */
+    Matrix getMatrix(int currentDegree, Matrix matrix) {
+        if (mPen == GraffitiView.Pen.COPY) { // 仿制，加上mCopyLocation记录的偏移
+            float dx = mCopy.getTouchStartX() - mCopy.getCopyStartX();
+            float dy = mCopy.getTouchStartY() - mCopy.getCopyStartY();
             int degree = currentDegree - mRotateDegree;
-            if (degree == 0) {
-                mMatrix.postTranslate(mCopy.getTouchStartX() - mCopy.getCopyStartX(), mCopy.getTouchStartY() - mCopy.getCopyStartY());
-                return mMatrix;
+            if (degree != 0) { // 偏移向量随图片一起旋转，旋转中心带来的平移在相减时抵消
+                double radian = Math.toRadians(degree);
+                float cos = (float) Math.cos(radian), sin = (float) Math.sin(radian);
+                float t = dx;
+                dx = t * cos - dy * sin;
+                dy = t * sin + dy * cos;
             }
-            float px = mPivotX, py = mPivotY;
-            if (mRotateDegree == 90 || mRotateDegree == 270) { //　交换中心点的xy坐标
-                float t = px;
-                px = py;
-                py = t;
-            }
-            float[] coords = rotatePoint(degree, mCopy.getTouchStartX(), mCopy.getTouchStartY(), px, py);
-            float[] coordsCopy = rotatePoint(degree, mCopy.getCopyStartX(), mCopy.getCopyStartY(), px, py);
-            if (Math.abs(degree) == 90 || Math.abs(degree) == 270) {
-                coords[0] += (py - px);
-                coords[1] += -(py - px);
-                coordsCopy[0] += (py - px);
-                coordsCopy[1] += -(py - px);
-            }
-            mMatrix.postTranslate(coords[0] - coordsCopy[0], coords[1] - coordsCopy[1]);
-            return mMatrix;
+            matrix.setTranslate(dx, dy);
         } else {
-            return mMatrix;
+            matrix.reset();
         }
+        return matrix;
+
+    }
+
+    /**
+     * 计算路径在绘制时的坐标系中所覆盖的范围，包括画笔的宽度
+     *
+     * @param rotateMatrix 旋转到当前坐标系的变换，为null时不旋转
+     */
+    void computeBounds(Matrix rotateMatrix, RectF bounds) {
+        RectF cached = mBounds;
+        if (cached == null) { // 多个线程同时计算时结果相同，只是重复计算一次
+            cached = new RectF();
+            if (mShape == GraffitiView.Shape.HAND_WRITE) {
+                mPath.computeBounds(cached, true);
+            } else if (mShape == GraffitiView.Shape.FILL_CIRCLE || mShape == GraffitiView.Shape.HOLLOW_CIRCLE) {
+                float radius = (float) Math.sqrt((mSx - mDx) * (mSx - mDx) + (mSy - mDy) * (mSy - mDy));
+                cached.set(mSx - radius, mSy - radius, mSx + radius, mSy + radius);
+            } else {
+                cached.set(mSx, mSy, mDx, mDy);
+                cached.sort();
+            }
+            // 箭头的宽度与画笔大小相同，这里统一向外扩展一个画笔大小，再加上抗锯齿的边缘
+            cached.inset(-mStrokeWidth - 2, -mStrokeWidth - 2);
+            mBounds = cached;
+        }
+        bounds.set(cached);
+        if (rotateMatrix != null) { // 旋转角度都是90的倍数，旋转后的外接矩形仍然准确
+            rotateMatrix.mapRect(bounds);
+        }
+    }
 
+    /**
+     * 计算路径在当前旋转角度下（图片坐标系）所覆盖的范围，包括画笔的宽度
+     */
+    public void computeBounds(int currentDegree, RectF bounds) {
+        computeBounds(getRotateMatrix(currentDegree), bounds);
     }
 
     static GraffitiPath toShape(GraffitiView.Pen pen, GraffitiView.Shape shape, float width, GraffitiColor color,
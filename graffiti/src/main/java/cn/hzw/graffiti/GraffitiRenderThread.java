@@ -0,0 +1,340 @@
+package cn.hzw.graffiti;
+
+import android.graphics.Canvas;
+import android.graphics.DrawFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PaintFlagsDrawFilter;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Process;
+import android.os.SystemClock;
+import android.view.SurfaceHolder;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import static cn.hzw.graffiti.DrawUtil.drawCircle;
+
+/**
+ * 在单独的线程中绘制涂鸦
+ * 主线程把每一帧的状态放入无锁队列后立即返回，绘制线程只绘制最新的状态。绘制线程维护自己的涂鸦图层，
+ * 根据路径记录的快照追加新路径，撤销时从自己的检查点恢复，重绘和合成都不会阻塞主线程。
+ */
+class GraffitiRenderThread extends Thread {
+
+    private final ConcurrentLinkedQueue<RenderState> mQueue = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Runnable> mTasks = new ConcurrentLinkedQueue<>(); // 撤销方式等设置，在绘制线程中按提交的顺序执行
+    private volatile long mUndoMemorySize;
+    private volatile boolean mIsQuit;
+    private volatile boolean mIsRedrawRequested; // Surface改变后需要重新绘制最近的状态
+    private final Object mSurfaceLock = new Object(); // 保证Surface销毁时没有正在进行的绘制
+    private SurfaceHolder mHolder;
+    private int mClearColor;
+    private final GraffitiSurfaceView mSurfaceView; // 统计触摸延迟
+
+    // 以下只在绘制线程中访问
+    private RenderState mState; // 最近绘制的状态
+    private long mInkEventTime; // 被跳过或尚未显示的状态中最早的触摸点的时间
+    private LayerCompositor.Result mPublished; // 最近发布的图层，供导航小地图使用
+    private OperationLog.Snapshot<GraffitiSelectableItem> mCachedItems; // 元素缓存对应的元素记录
+    private final LayerReplay mReplay = new LayerReplay(); // 绘制线程自己的涂鸦图层
+    private final Rect mClip = new Rect();
+    private DrawFilter mDraftFilter;
+    private final Rect mViewClip = new Rect(); // 画布可见的范围（图片坐标系）
+    private final RectF mViewClipF = new RectF(), mItemBounds = new RectF();
+    private final Matrix mItemMatrix = new Matrix();
+    private final float[] mItemXy = new float[2];
+    private CopyLocation mCopyLocation;
+    private Path mAmplifierPath;
+    private float mAmplifierPathRadius;
+    private Paint mAmplifierPaint;
+
+    GraffitiRenderThread(GraffitiSurfaceView surfaceView, int clearColor) {
+        super("GraffitiRender");
+        mSurfaceView = surfaceView;
+        mClearColor = clearColor;
+    }
+
+    /**
+     * 提交新的一帧，可以在任意线程中调用
+     */
+    void post(RenderState state) {
+        mQueue.offer(state);
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * 设置绘制的目标，为null时停止绘制。Surface销毁时调用，返回后不会再使用原来的Surface
+     */
+    void setSurface(SurfaceHolder holder) {
+        synchronized (mSurfaceLock) {
+            mHolder = holder;
+        }
+        if (holder != null) {
+            requestRedraw();
+        }
+    }
+
+    void setClearColor(int clearColor) {
+        mClearColor = clearColor;
+        requestRedraw();
+    }
+
+    void setUndoMode(final GraffitiView.UndoMode undoMode) {
+        runOnLoop(new Runnable() {
+            @Override
+            public void run() {
+                mReplay.setUndoMode(undoMode);
+            }
+        });
+    }
+
+    void setCheckpointInterval(final int interval) {
+        runOnLoop(new Runnable() {
+            @Override
+            public void run() {
+                mReplay.setCheckpointInterval(interval);
+            }
+        });
+    }
+
+    void setUndoMemoryBudget(final long memoryBudget) {
+        runOnLoop(new Runnable() {
+            @Override
+            public void run() {
+                mReplay.setUndoMemoryBudget(memoryBudget);
+            }
+        });
+    }
+
+    /**
+     * 最近一次绘制或设置后撤销快照占用的内存（byte）
+     */
+    long getUndoMemorySize() {
+        return mUndoMemorySize;
+    }
+
+    private void runOnLoop(Runnable task) {
+        mTasks.offer(task);
+        LockSupport.unpark(this);
+    }
+
+    void requestRedraw() {
+        mIsRedrawRequested = true;
+        LockSupport.unpark(this);
+    }
+
+    void quit() {
+        mIsQuit = true;
+        LockSupport.unpark(this);
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_DISPLAY);
+        while (!mIsQuit) {
+            Runnable task;
+            while ((task = mTasks.poll()) != null) { // 设置在绘制下一帧之前生效
+                task.run();
+                mUndoMemorySize = mReplay.getUndoMemorySize();
+            }
+            RenderState state = null, next;
+            while ((next = mQueue.poll()) != null) { // 中间的状态已过时，只绘制最新的
+                state = next;
+                if (mInkEventTime == 0) {
+                    mInkEventTime = next.mInkEventTime;
+                }
+            }
+            if (state == null) {
+                if (!mIsRedrawRequested || mState == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                state = mState;
+            }
+            mIsRedrawRequested = false;
+            mState = state;
+
+            mReplay.sync(state);
+            mUndoMemorySize = mReplay.getUndoMemorySize();
+            publishLayer(state);
+            releaseRemovedItems(state);
+            if (drawFrame(state) && mInkEventTime != 0) { // 画面已提交显示
+                mSurfaceView.onInkDrawn(SystemClock.uptimeMillis() - mInkEventTime);
+                mInkEventTime = 0;
+            }
+        }
+        mQueue.clear();
+        mTasks.clear();
+        mReplay.release();
+    }
+
+    /**
+     * 图层包含的路径、图片或旋转角度改变后，与后台合成一样发布图层和各级缩小图的只读副本，不复制像素
+     */
+    private void publishLayer(RenderState state) {
+        LayerCompositor.Result last = mPublished;
+        int size = state.mPaths.size();
+        if (last != null && last.mRotateDegree == state.mRotateDegree && last.mMipmap.getBitmap() == state.mBitmap
+                && last.mPaths.size() == size && state.mPaths.commonPrefix(last.mPaths) == size) {
+            return;
+        }
+        mPublished = new LayerCompositor.Result(mReplay.getLayer().publish(), mReplay.getMipmap().publish(),
+                state.mPaths, state.mRotateDegree);
+        mSurfaceView.onLayerPublished(mPublished);
+    }
+
+    /**
+     * 元素记录改变后丢弃已被撤销或移除的元素的缓存，绘制线程无法逐个得知元素被移除
+     */
+    private void releaseRemovedItems(RenderState state) {
+        OperationLog.Snapshot<GraffitiSelectableItem> items = state.mItems;
+        if (mCachedItems != null && mCachedItems.size() <= items.size()
+                && items.commonPrefix(mCachedItems) == mCachedItems.size()) { // 只追加了元素
+            mCachedItems = items;
+            return;
+        }
+        mCachedItems = items;
+        mReplay.getRenderer().retainItems(items);
+    }
+
+    /**
+     * @return 是否已绘制并提交显示
+     */
+    private boolean drawFrame(RenderState state) {
+        synchronized (mSurfaceLock) {
+            if (mHolder == null) {
+                return false;
+            }
+            Canvas canvas = mHolder.lockCanvas();
+            if (canvas == null) {
+                return false;
+            }
+            try {
+                if (state.mIsDraft) {
+                    if (mDraftFilter == null) {
+                        mDraftFilter = new PaintFlagsDrawFilter(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG, 0);
+                    }
+                    canvas.setDrawFilter(mDraftFilter);
+                } else {
+                    canvas.setDrawFilter(null); // Surface的画布可能被复用
+                }
+                canvas.drawColor(mClearColor);
+                canvas.save();
+                drawScene(canvas, state, false);
+                canvas.restore();
+                if (state.mAmplifierScale > 0) {
+                    drawAmplifier(canvas, state);
+                }
+            } finally {
+                mHolder.unlockCanvasAndPost(canvas);
+            }
+            return true;
+        }
+    }
+
+    private void drawAmplifier(Canvas canvas, RenderState state) {
+        float radius = state.mAmplifierRadius;
+        if (mAmplifierPath == null || mAmplifierPathRadius != radius) {
+            mAmplifierPath = new Path();
+            mAmplifierPath.addCircle(radius, radius, radius, Path.Direction.CCW);
+            mAmplifierPathRadius = radius;
+        }
+        if (mAmplifierPaint == null) {
+            mAmplifierPaint = new Paint();
+            mAmplifierPaint.setColor(0xaaffffff);
+            mAmplifierPaint.setStyle(Paint.Style.STROKE);
+            mAmplifierPaint.setAntiAlias(true);
+            mAmplifierPaint.setStrokeJoin(Paint.Join.ROUND);
+            mAmplifierPaint.setStrokeCap(Paint.Cap.ROUND);// 圆滑
+        }
+        mAmplifierPaint.setStrokeWidth(state.mAmplifierStrokeWidth);
+
+        canvas.save();
+        canvas.translate(state.mAmplifierLeft, state.mAmplifierTop);
+        canvas.clipPath(mAmplifierPath);
+        canvas.drawColor(0xff000000);
+
+        canvas.save();
+        float scale = state.mAmplifierScale / state.mViewScale; // 与GraffitiView一致，产生图片在居中状态下缩放mAmplifierScale倍的效果
+        canvas.scale(scale, scale);
+        canvas.translate(-state.mTouchX + radius / scale, -state.mTouchY + radius / scale);
+        drawScene(canvas, state, true);
+        canvas.restore();
+
+        // 画放大器的边框
+        drawCircle(canvas, radius, radius, radius, mAmplifierPaint);
+        canvas.restore();
+    }
+
+    /**
+     * 与GraffitiView的绘制一致：原图、涂鸦图层、正在绘制的笔画、仿制定位器和可选择的元素
+     */
+    private void drawScene(Canvas canvas, RenderState state, boolean isAmplifier) {
+        canvas.translate(state.mLeft, state.mTop);
+        canvas.scale(state.mScale, state.mScale);
+        canvas.getClipBounds(mViewClip); // 可见范围之外的元素不绘制
+        mViewClipF.set(mViewClip);
+
+        canvas.save();
+        if (!state.mIsDrawableOutside) { // 裁剪绘制区域为图片区域
+            canvas.clipRect(0, 0, state.mBitmap.getWidth(), state.mBitmap.getHeight());
+        }
+        canvas.getClipBounds(mClip);
+        // 缩小显示时绘制原图和图层的缩小图，放大器总是使用原图
+        LayerMipmap mipmap = mReplay.getMipmap();
+        int level = isAmplifier ? 0 : mipmap.getLevel(state.mBitmap, state.mScale);
+        if (level > 0) {
+            mipmap.drawBitmap(canvas, level);
+        } else {
+            canvas.drawBitmap(state.mBitmap, 0, 0, null);
+        }
+        if (state.mIsJustDrawOriginal) { // 只绘制原图
+            canvas.restore();
+            return;
+        }
+        if (level > 0) {
+            mipmap.drawLayer(canvas, level, mClip);
+        } else {
+            mReplay.getLayer().drawTo(canvas, mClip, null);
+        }
+        GraffitiRenderer renderer = mReplay.getRenderer();
+
+        if (state.mIsPainting) {
+            if (state.mShape == GraffitiView.Shape.HAND_WRITE) {
+                renderer.drawStroke(canvas, state.mPen, state.mPaintSize, state.mStroke, state.mShaderMatrix, state.mColor);
+                if (state.mPrediction != null) {
+                    renderer.drawStroke(canvas, state.mPen, state.mPaintSize, state.mPrediction, state.mShaderMatrix, state.mColor);
+                }
+            } else {
+                renderer.drawShape(canvas, state.mPen, state.mShape, state.mPaintSize,
+                        state.mSx, state.mSy, state.mDx, state.mDy, state.mShaderMatrix, state.mColor);
+            }
+        }
+        canvas.restore();
+
+        if (state.mIsDrawCopyLocation) {
+            if (mCopyLocation == null) {
+                mCopyLocation = new CopyLocation(0, 0);
+            }
+            mCopyLocation.updateLocation(state.mCopyX, state.mCopyY);
+            mCopyLocation.setCopying(state.mIsCopying);
+            mCopyLocation.drawItSelf(canvas, state.mPaintSize);
+        }
+
+        for (GraffitiSelectableItem item : state.mItems) {
+            synchronized (item) { // 元素的内容可能正在主线程中修改
+                if (item != state.mSelectedItem) { // 选中框和旋转标志超出元素本身的范围
+                    ItemSpatialIndex.computeBounds(item, state.mRotateDegree, mItemMatrix, mItemXy, mItemBounds);
+                    if (!RectF.intersects(mItemBounds, mViewClipF)) {
+                        continue;
+                    }
+                }
+                renderer.drawItem(canvas, state.mView, item, item == state.mSelectedItem, state.mIsRotatingSelectedItem,
+                        isAmplifier ? 0 : state.mScale);
+            }
+        }
+    }
+}
@@ -0,0 +1,391 @@
+package cn.hzw.graffiti;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Shader;
+
+import static cn.hzw.graffiti.DrawUtil.GRAFFITI_PIXEL_UNIT;
+import static cn.hzw.graffiti.DrawUtil.drawArrow;
+import static cn.hzw.graffiti.DrawUtil.drawCircle;
+import static cn.hzw.graffiti.DrawUtil.drawLine;
+import static cn.hzw.graffiti.DrawUtil.drawRect;
+
+/**
+ * 绘制涂鸦路径、图形和可选择的元素
+ * 绘制时会修改的画笔、矩阵和着色器都属于该对象，每个绘制线程使用各自的对象，互不影响。
+ */
+class GraffitiRenderer {
+
+    private final Paint mPaint;
+    private final float mPivotX, mPivotY; // 原图中心，所有路径都绕它旋转
+    private int mRotateDegree; // 当前涂鸦的旋转角度
+
+    private Bitmap mBitmap, mBitmapEraser;
+    private BitmapShader mBitmapShader; // 主要用于仿制和橡皮擦（未设置底图）
+    private BitmapShader mBitmapShaderEraser; // 橡皮擦底图，当未设置橡皮擦底图时，mBitmapShaderEraser = mBitmapShader
+    private final Matrix mShaderMatrixEraser = new Matrix(); // 橡皮擦底图的变化矩阵
+    private final Matrix mShaderMatrixColor = new Matrix(); // 画笔图片底图的变化矩阵
+    private final ShaderCache.Local mLocalShaders; // 为null时使用GraffitiColor自己的着色器
+    private boolean mIsRecording; // 是否正在录制Picture
+
+    // 重绘旋转前绘制的路径时，旋转画布而不是变换路径，旋转角度相同的连续路径共用同一个变换
+    private final Matrix mRotateMatrix = new Matrix();
+    private final Matrix mRotateInvertMatrix = new Matrix();
+    private int mRotateMatrixFrom = Integer.MIN_VALUE, mRotateMatrixTo = Integer.MIN_VALUE;
+    private boolean mIsDrawingRotated; // 画布是否已旋转，此时着色器的矩阵需要抵消画布的旋转
+    private final Matrix mShaderMatrixRotated = new Matrix();
+    private final Matrix mPathMatrix = new Matrix(); // 路径的仿制偏移
+
+    private final float[] mTempXy = new float[2];
+
+    private ItemCache mItemCache; // 可选择元素的绘制缓存，第一次绘制元素时创建
+    private Paint mItemCachePaint;
+    private final RectF mItemRectF = new RectF();
+
+    /**
+     * @param pivotX         原图中心
+     * @param pivotY
+     * @param privateShaders 是否使用只属于该对象的着色器。在主线程之外绘制时必须为true，避免与主线程修改同一个着色器的矩阵
+     */
+    GraffitiRenderer(float pivotX, float pivotY, boolean privateShaders) {
+        mPivotX = pivotX;
+        mPivotY = pivotY;
+        mLocalShaders = privateShaders ? new ShaderCache.Local() : null;
+
+        mPaint = new Paint();
+        mPaint.setAntiAlias(true);
+        mPaint.setStrokeJoin(Paint.Join.ROUND);
+        mPaint.setStrokeCap(Paint.Cap.ROUND);// 圆滑
+    }
+
+    /**
+     * 设置当前涂鸦的原图和橡皮擦底图
+     */
+    void setBitmap(Bitmap bitmap, Bitmap eraser) {
+        if (bitmap == mBitmap && eraser == mBitmapEraser) {
+            return;
+        }
+        mBitmap = bitmap;
+        mBitmapEraser = eraser;
+        mBitmapShader = new BitmapShader(bitmap, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
+        if (eraser != null) {
+            mBitmapShaderEraser = new BitmapShader(eraser, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
+        } else {
+            mBitmapShaderEraser = mBitmapShader;
+        }
+    }
+
+    /**
+     * 录制Picture时每次绘制都使用新的着色器，录制的内容不会因之后修改着色器的矩阵而改变
+     */
+    void setRecording(boolean recording) {
+        mIsRecording = recording;
+    }
+
+    void setRotateDegree(int degree) {
+        mRotateDegree = degree;
+    }
+
+    int getRotateDegree() {
+        return mRotateDegree;
+    }
+
+    /**
+     * 设置自定义橡皮擦底图的变化矩阵
+     */
+    void setEraserMatrix(Matrix matrix) {
+        mShaderMatrixEraser.set(matrix);
+    }
+
+    /**
+     * 从路径绘制时的坐标系旋转到当前坐标系的变换，与上一个路径的旋转角度相同时直接复用
+     *
+     * @return 路径绘制后图片没有旋转过时返回null
+     */
+    Matrix getRotateMatrix(GraffitiPath path) {
+        if (path.mRotateDegree == mRotateDegree) {
+            return null;
+        }
+        if (mRotateMatrixFrom != path.mRotateDegree || mRotateMatrixTo != mRotateDegree) {
+            // 所有路径都是绕原图中心旋转的
+            GraffitiPath.computeRotateMatrix(mRotateDegree, path.mRotateDegree, mPivotX, mPivotY, mRotateMatrix);
+            mRotateMatrix.invert(mRotateInvertMatrix);
+            mRotateMatrixFrom = path.mRotateDegree;
+            mRotateMatrixTo = mRotateDegree;
+        }
+        return mRotateMatrix;
+    }
+
+    /**
+     * 绘制已完成的路径
+     */
+    void drawPath(Canvas canvas, GraffitiPath path) {
+        Matrix rotateMatrix = getRotateMatrix(path);
+        if (rotateMatrix != null) { // 图片在路径绘制后旋转过，旋转画布，在路径原来的坐标系中绘制
+            canvas.save();
+            canvas.concat(rotateMatrix);
+            mIsDrawingRotated = true;
+        }
+        mPaint.setStrokeWidth(path.mStrokeWidth);
+        if (path.mShape == GraffitiView.Shape.HAND_WRITE) { // 手写
+            draw(canvas, path.mPen, path.mPath, path.getMatrix(mRotateDegree, mPathMatrix), path.mColor);
+        } else { // 画图形
+            draw(canvas, path.mPen, path.mShape,
+                    path.mSx, path.mSy, path.mDx, path.mDy, path.getMatrix(mRotateDegree, mPathMatrix), path.mColor);
+        }
+        if (rotateMatrix != null) {
+            mIsDrawingRotated = false;
+            canvas.restore();
+        }
+    }
+
+    /**
+     * 绘制正在手写的路径（当前坐标系）
+     */
+    void drawStroke(Canvas canvas, GraffitiView.Pen pen, float strokeWidth, Path path, Matrix matrix, GraffitiColor color) {
+        mPaint.setStrokeWidth(strokeWidth);
+        draw(canvas, pen, path, matrix, color);
+    }
+
+    /**
+     * 绘制正在绘制的图形（当前坐标系）
+     */
+    void drawShape(Canvas canvas, GraffitiView.Pen pen, GraffitiView.Shape shape, float strokeWidth,
+                   float sx, float sy, float dx, float dy, Matrix matrix, GraffitiColor color) {
+        mPaint.setStrokeWidth(strokeWidth);
+        draw(canvas, pen, shape, sx, sy, dx, dy, matrix, color);
+    }
+
+    /**
+     * 画出可选择的元素
+     *
+     * @param selected 是否被选中，选中时画出选中框和旋转标志
+     * @param rotating 是否正在旋转
+     * @param scale    画布相对于图片的缩放倍数，用于选择缓存的档位。小于等于0时不使用缓存，直接绘制
+     */
+    void drawItem(Canvas canvas, GraffitiView graffitiView, GraffitiSelectableItem selectableItem, boolean selected,
+                  boolean rotating, float scale) {
+        canvas.save();
+
+        selectableItem.getXy(mRotateDegree, mTempXy); // 获取旋转图片后文字的起始坐标
+        canvas.translate(mTempXy[0], mTempXy[1]); // 把坐标系平移到文字矩形范围
+        canvas.rotate(mRotateDegree - selectableItem.getGraffitiRotate() + selectableItem.getItemRotate(), 0, 0); // 旋转坐标系
+
+        // 在变换后的坐标系中画出文字
+        if (selected) {
+            Rect rect = selectableItem.getBounds(mRotateDegree);
+            mPaint.setShader(null);
+            // Rect
+            /*if (selectableItem.getColor().getType() == GraffitiColor.Type.COLOR) {
+                mPaint.setColor(Color.argb(126,
+                        255 - Color.red(selectableItem.getColor().getColor()),
+                        255 - Color.green(selectableItem.getColor().getColor()),
+                        255 - Color.blue(selectableItem.getColor().getColor())));
+            } else {*/
+            mPaint.setColor(0x88888888);
+//            }
+            mPaint.setStyle(Paint.Style.FILL);
+            mPaint.setStrokeWidth(1);
+            canvas.drawRect(rect, mPaint);
+            // border
+            if (rotating) {
+                mPaint.setColor(0x88ffd700);
+            } else {
+                mPaint.setColor(0x88888888);
+            }
+            mPaint.setStyle(Paint.Style.STROKE);
+            mPaint.setStrokeWidth(2 * GRAFFITI_PIXEL_UNIT);
+            canvas.drawRect(rect, mPaint);
+            // rotate
+            mPaint.setStyle(Paint.Style.STROKE);
+            mPaint.setStrokeWidth(4 * GRAFFITI_PIXEL_UNIT);
+            canvas.drawLine(rect.right, rect.top + rect.height() / 2,
+                    rect.right + (GraffitiSelectableItem.ITEM_CAN_ROTATE_BOUND - 16) * GRAFFITI_PIXEL_UNIT, rect.top + rect.height() / 2, mPaint);
+            canvas.drawCircle(rect.right + (GraffitiSelectableItem.ITEM_CAN_ROTATE_BOUND - 8) * GRAFFITI_PIXEL_UNIT, rect.top + rect.height() / 2, 8 * GRAFFITI_PIXEL_UNIT, mPaint);
+
+        }
+        if (scale <= 0 || !drawCachedItem(canvas, graffitiView, selectableItem, scale)) {
+            resetPaint(GraffitiView.Pen.TEXT, null, selectableItem.getColor());
+            selectableItem.draw(canvas, graffitiView, mPaint);
+        }
+
+        canvas.restore();
+
+    }
+
+    /**
+     * 绘制元素的缓存，缓存失效时先重新绘制到缓存中。画布已变换到元素的坐标系
+     *
+     * @return 元素太大无法缓存时返回false
+     */
+    private boolean drawCachedItem(Canvas canvas, GraffitiView graffitiView, GraffitiSelectableItem selectableItem, float scale) {
+        Rect rect = selectableItem.getBounds(mRotateDegree);
+        float bucket = ItemCache.getScaleBucket(scale);
+        if (mItemCache == null) {
+            mItemCache = new ItemCache(Runtime.getRuntime().maxMemory() / 16);
+            mItemCachePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        }
+        ItemCache.Entry entry = mItemCache.get(selectableItem);
+        if (entry == null || !entry.matches(selectableItem, bucket, mRotateDegree, rect)) {
+            int width = (int) Math.ceil(rect.width() * bucket), height = (int) Math.ceil(rect.height() * bucket);
+            if (width <= 0 || height <= 0 || width > ItemCache.MAX_SIZE || height > ItemCache.MAX_SIZE) {
+                mItemCache.remove(selectableItem);
+                return false;
+            }
+            Bitmap bitmap;
+            try {
+                bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            } catch (OutOfMemoryError e) { // 内存不足时直接绘制
+                mItemCache.remove(selectableItem);
+                return false;
+            }
+            Canvas cacheCanvas = new Canvas(bitmap);
+            cacheCanvas.scale(bucket, bucket);
+            cacheCanvas.translate(-rect.left, -rect.top);
+            resetPaint(GraffitiView.Pen.TEXT, null, selectableItem.getColor());
+            selectableItem.draw(cacheCanvas, graffitiView, mPaint);
+            entry = new ItemCache.Entry(bitmap, bucket, mRotateDegree, selectableItem, rect);
+            mItemCache.put(selectableItem, entry);
+        }
+        mItemRectF.set(rect.left, rect.top, rect.left + entry.mBitmap.getWidth() / bucket,
+                rect.top + entry.mBitmap.getHeight() / bucket);
+        canvas.drawBitmap(entry.mBitmap, null, mItemRectF, mItemCachePaint);
+        return true;
+    }
+
+    /**
+     * 元素被移除后释放它的缓存
+     */
+    void releaseItem(GraffitiSelectableItem selectableItem) {
+        if (mItemCache != null) {
+            mItemCache.remove(selectableItem);
+        }
+    }
+
+    /**
+     * 释放不在items中的元素的缓存
+     */
+    void retainItems(OperationLog.Snapshot<GraffitiSelectableItem> items) {
+        if (mItemCache != null) {
+            mItemCache.retain(items);
+        }
+    }
+
+    void releaseItems() {
+        if (mItemCache != null) {
+            mItemCache.clear();
+        }
+    }
+
+    private void draw(Canvas canvas, GraffitiView.Pen pen, Path path, Matrix matrix, GraffitiColor color) {
+        resetPaint(pen, matrix, color);
+
+        mPaint.setStyle(Paint.Style.STROKE);
+        canvas.drawPath(path, mPaint);
+    }
+
+    private void draw(Canvas canvas, GraffitiView.Pen pen, GraffitiView.Shape shape, float sx, float sy, float dx, float dy, Matrix matrix, GraffitiColor color) {
+        resetPaint(pen, matrix, color);
+
+        Paint paint = mPaint;
+        paint.setStyle(Paint.Style.STROKE);
+
+        switch (shape) { // 绘制图形
+            case ARROW:
+                paint.setStyle(Paint.Style.FILL);
+                drawArrow(canvas, sx, sy, dx, dy, paint);
+                break;
+            case LINE:
+                drawLine(canvas, sx, sy, dx, dy, paint);
+                break;
+            case FILL_CIRCLE:
+                paint.setStyle(Paint.Style.FILL);
+            case HOLLOW_CIRCLE:
+                drawCircle(canvas, sx, sy,
+                        (float) Math.sqrt((sx - dx) * (sx - dx) + (sy - dy) * (sy - dy)), paint);
+                break;
+            case FILL_RECT:
+                paint.setStyle(Paint.Style.FILL);
+            case HOLLOW_RECT:
+                drawRect(canvas, sx, sy, dx, dy, paint);
+                break;
+            default:
+                throw new RuntimeException("unknown shape:" + shape);
+        }
+    }
+
+    private void resetPaint(GraffitiView.Pen pen, Matrix matrix, GraffitiColor color) {
+        Paint paint = mPaint;
+        paint.setColor(Color.BLACK);
+        switch (pen) { // 设置画笔
+            case HAND:
+            case TEXT:
+                paint.setShader(null);
+                mShaderMatrixColor.reset();
+
+                if (color.getType() == GraffitiColor.Type.BITMAP) { // 旋转底图
+                    if (mRotateDegree != 0) {
+                        float px = mPivotX, py = mPivotY;
+                        if (mRotateDegree == 90 || mRotateDegree == 270) { //　交换中心点的xy坐标
+                            float t = px;
+                            px = py;
+                            py = t;
+                        }
+                        mShaderMatrixColor.postRotate(mRotateDegree, px, py);
+                        if (Math.abs(mRotateDegree) == 90 || Math.abs(mRotateDegree) == 270) {
+                            mShaderMatrixColor.postTranslate((py - px), -(py - px));
+                        }
+                    }
+                }
+
+                if (mIsRecording && color.getType() == GraffitiColor.Type.BITMAP) {
+                    BitmapShader shader = new BitmapShader(color.getBitmap(), color.getTileX(), color.getTileY());
+                    shader.setLocalMatrix(toDrawingShaderMatrix(mShaderMatrixColor));
+                    paint.setShader(shader);
+                } else if (mLocalShaders != null && color.getType() == GraffitiColor.Type.BITMAP) {
+                    BitmapShader shader = mLocalShaders.obtain(color.getBitmap(), color.getTileX(), color.getTileY());
+                    shader.setLocalMatrix(toDrawingShaderMatrix(mShaderMatrixColor));
+                    paint.setShader(shader);
+                } else {
+                    color.initColor(paint, toDrawingShaderMatrix(mShaderMatrixColor));
+                }
+                break;
+            case COPY:
+                // 调整copy图片位置
+                BitmapShader copyShader = mIsRecording
+                        ? new BitmapShader(mBitmap, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT) : mBitmapShader;
+                copyShader.setLocalMatrix(toDrawingShaderMatrix(matrix));
+                paint.setShader(copyShader);
+                break;
+            case ERASER:
+                BitmapShader eraserShader = mIsRecording ? new BitmapShader(mBitmapEraser != null ? mBitmapEraser : mBitmap,
+                        Shader.TileMode.REPEAT, Shader.TileMode.REPEAT) : mBitmapShaderEraser;
+                if (mBitmapShader != mBitmapShaderEraser) {
+                    eraserShader.setLocalMatrix(toDrawingShaderMatrix(mShaderMatrixEraser));
+                } else {
+                    eraserShader.setLocalMatrix(toDrawingShaderMatrix(matrix));
+                }
+                paint.setShader(eraserShader);
+                break;
+        }
+    }
+
+    /**
+     * 着色器的矩阵都是相对于当前坐标系的，画布旋转时需要抵消画布的旋转，使底图保持不动
+     */
+    private Matrix toDrawingShaderMatrix(Matrix matrix) {
+        if (!mIsDrawingRotated) {
+            return matrix;
+        }
+        mShaderMatrixRotated.set(matrix);
+        mShaderMatrixRotated.postConcat(mRotateInvertMatrix);
+        return mShaderMatrixRotated;
+    }
+}
@@ -11,6 +11,7 @@ import static cn.hzw.graffiti.DrawUtil.rotatePointInGraffiti;
 
 /**
  * 可选择的涂鸦条目，例如文字、图片
+ * 修改条目的方法都以条目自身加锁，在绘制线程中绘制时也会持有该锁（{@link GraffitiSurfaceView}）
  * Created by huangziwei on 2017/7/16.
  */
 
@@ -27,6 +28,9 @@ public abstract class GraffitiSelectableItem implements Undoable {
     private float mX, mY;
 
     private Rect mRect = new Rect();
+    private ItemSpatialIndex mSpatialIndex; // 所在的空间索引，范围改变时需要更新
+    private int mContentVersion; // 内容每次改变时加1，用于判断绘制缓存是否有效
+    private final float[] mTempXy = new float[2]; // 坐标变换的临时结果，避免在触摸时分配内存
 
     public GraffitiSelectableItem(GraffitiView.Pen pen, float size, GraffitiColor color, int textRotate, int rotateDegree, float x, float y, float px, float py) {
         this.mPen = pen;
@@ -50,35 +54,47 @@ public abstract class GraffitiSelectableItem implements Undoable {
         return mSize;
     }
 
-    public void setSize(float size) {
+    public synchronized void setSize(float size) {
         mSize = size;
         resetBounds(mRect);
+        onBoundsChanged();
+        onContentChanged();
     }
 
-    public void setXy(int currentRotate, float x, float y) {
-        float[] xy = restoreRotatePointInGraffiti(currentRotate, mGraffitiDegree, x, y, mPivotX, mPivotY);
-        mX = xy[0];
-        mY = xy[1];
+    public synchronized void setXy(int currentRotate, float x, float y) {
+        restoreRotatePointInGraffiti(currentRotate, mGraffitiDegree, x, y, mPivotX, mPivotY, mTempXy);
+        mX = mTempXy[0];
+        mY = mTempXy[1];
+        onBoundsChanged();
     }
 
     public float[] getXy(int currentDegree) {
         return rotatePointInGraffiti(currentDegree, mGraffitiDegree, mX, mY, mPivotX, mPivotY);
     }
 
+    /**
+     * 获取旋转图片后的起始坐标，结果写入out
+     */
+    public void getXy(int currentDegree, float[] out) {
+        rotatePointInGraffiti(currentDegree, mGraffitiDegree, mX, mY, mPivotX, mPivotY, out);
+    }
+
     public GraffitiColor getColor() {
         return mColor;
     }
 
-    public void setColor(GraffitiColor color) {
+    public synchronized void setColor(GraffitiColor color) {
         mColor = color;
+        onContentChanged();
     }
 
     public Rect getBounds(int currentRotate) {
         return mRect;
     }
 
-    public void setItemRotate(float textRotate) {
+    public synchronized void setItemRotate(float textRotate) {
         mItemRotate = textRotate;
+        onBoundsChanged();
     }
 
     public float getItemRotate() {
@@ -96,28 +112,52 @@ public abstract class GraffitiSelectableItem implements Undoable {
         if (pen != mPen) {
             return false;
         }
-        float[] xy = getXy(currentRotate);
+        getXy(currentRotate, mTempXy);
         // 把触摸点转换成在文字坐标系（即以文字起始点作为坐标原点）内的点
-        x = x - xy[0];
-        y = y - xy[1];
+        x = x - mTempXy[0];
+        y = y - mTempXy[1];
         // 把变换后相对于矩形的触摸点，还原回未变换前的点，然后判断是否矩形中
-        float[] rectXy = rotatePoint((int) -(currentRotate - mGraffitiDegree + mItemRotate), x, y, 0, 0);
-        return mRect.contains((int) rectXy[0], (int) rectXy[1]);
+        rotatePoint((int) -(currentRotate - mGraffitiDegree + mItemRotate), x, y, 0, 0, mTempXy);
+        return mRect.contains((int) mTempXy[0], (int) mTempXy[1]);
     }
 
     /**
      * 是否可以旋转
      */
     public boolean isCanRotate(int currentRotate, float x, float y) {
-        float[] xy = getXy(currentRotate);
+        getXy(currentRotate, mTempXy);
         // 把触摸点转换成在item坐标系（即以item起始点作为坐标原点）内的点
-        x = x - xy[0];
-        y = y - xy[1];
+        x = x - mTempXy[0];
+        y = y - mTempXy[1];
         // 把变换后矩形中的触摸点，还原回未变换前矩形中的点，然后判断是否矩形中
-        float[] rectXy = rotatePoint((int) -(currentRotate - mGraffitiDegree + mItemRotate), x, y, 0, 0);
+        rotatePoint((int) -(currentRotate - mGraffitiDegree + mItemRotate), x, y, 0, 0, mTempXy);
+
+        return mTempXy[0] >= mRect.right && mTempXy[0] <= mRect.right + ITEM_CAN_ROTATE_BOUND * GRAFFITI_PIXEL_UNIT
+                && mTempXy[1] >= mRect.top && mTempXy[1] <= mRect.bottom;
+    }
+
+    void setSpatialIndex(ItemSpatialIndex spatialIndex) {
+        mSpatialIndex = spatialIndex;
+    }
+
+    /**
+     * 位置、角度或大小改变后调用，更新空间索引
+     */
+    protected void onBoundsChanged() {
+        if (mSpatialIndex != null) {
+            mSpatialIndex.update(this);
+        }
+    }
+
+    /**
+     * 绘制的内容改变后调用，使绘制缓存失效
+     */
+    protected void onContentChanged() {
+        mContentVersion++;
+    }
 
-        return rectXy[0] >= mRect.right && rectXy[0] <= mRect.right + ITEM_CAN_ROTATE_BOUND * GRAFFITI_PIXEL_UNIT
-                && rectXy[1] >= mRect.top && rectXy[1] <= mRect.bottom;
+    int getContentVersion() {
+        return mContentVersion;
     }
 
     public abstract void resetBounds(Rect rect);
@@ -0,0 +1,174 @@
+package cn.hzw.graffiti;
+
+import android.content.Context;
+import android.graphics.Color;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+/**
+ * 在单独的线程中绘制涂鸦的显示目标
+ * 放在GraffitiView之下，位置和大小必须与GraffitiView相同。GraffitiView仍然处理触摸和对外的接口，但不再绘制自身，
+ * 每一帧只把状态的快照交给绘制线程；路径的绘制、撤销时的重绘以及元素的合成都在绘制线程中进行，不会阻塞主线程。
+ * {@link GraffitiView#setRenderSurface(GraffitiSurfaceView)}
+ */
+public class GraffitiSurfaceView extends SurfaceView implements SurfaceHolder.Callback {
+
+    private GraffitiRenderThread mRenderThread;
+    private GraffitiView mGraffitiView;
+    private volatile LayerCompositor.Result mLayerResult; // 绘制线程最近发布的图层
+    private final Runnable mNotifyLayerPublished = new Runnable() {
+        @Override
+        public void run() {
+            if (mGraffitiView != null) {
+                mGraffitiView.onRenderLayerPublished();
+            }
+        }
+    };
+    private RenderState mLastState; // 最近提交的状态，绘制线程重新创建时使用
+    private int mClearColor = Color.BLACK;
+    // 最近的撤销设置，绘制线程重新创建时使用，默认值与LayerReplay一致
+    private GraffitiView.UndoMode mUndoMode = GraffitiView.UndoMode.CHECKPOINT;
+    private int mCheckpointInterval = 20;
+    private long mUndoMemoryBudget = Runtime.getRuntime().maxMemory() / 8;
+    // 绘制线程统计的触摸延迟，在主线程中读取
+    private long mInkLatencySum;
+    private int mInkLatencyCount;
+
+    public GraffitiSurfaceView(Context context) {
+        super(context);
+        getHolder().addCallback(this);
+    }
+
+    /**
+     * 设置图片之外的背景色
+     */
+    public void setClearColor(int clearColor) {
+        mClearColor = clearColor;
+        if (mRenderThread != null) {
+            mRenderThread.setClearColor(clearColor);
+        }
+    }
+
+    public int getClearColor() {
+        return mClearColor;
+    }
+
+    void setUndoMode(GraffitiView.UndoMode undoMode) {
+        mUndoMode = undoMode;
+        if (mRenderThread != null) {
+            mRenderThread.setUndoMode(undoMode);
+        }
+    }
+
+    void setCheckpointInterval(int interval) {
+        mCheckpointInterval = interval;
+        if (mRenderThread != null) {
+            mRenderThread.setCheckpointInterval(interval);
+        }
+    }
+
+    void setUndoMemoryBudget(long memoryBudget) {
+        mUndoMemoryBudget = memoryBudget;
+        if (mRenderThread != null) {
+            mRenderThread.setUndoMemoryBudget(memoryBudget);
+        }
+    }
+
+    /**
+     * 绘制线程的撤销快照占用的内存（byte）
+     */
+    long getUndoMemorySize() {
+        return mRenderThread == null ? 0 : mRenderThread.getUndoMemorySize();
+    }
+
+    /**
+     * 触摸点所在的一帧提交显示后在绘制线程中调用
+     *
+     * @param latency 触摸点从产生到被绘制出来的耗时（毫秒）
+     */
+    synchronized void onInkDrawn(long latency) {
+        mInkLatencySum += latency;
+        mInkLatencyCount++;
+    }
+
+    synchronized long getInkLatencySum() {
+        return mInkLatencySum;
+    }
+
+    synchronized int getInkLatencyCount() {
+        return mInkLatencyCount;
+    }
+
+    synchronized void resetInkLatency() {
+        mInkLatencySum = 0;
+        mInkLatencyCount = 0;
+    }
+
+    void setGraffitiView(GraffitiView graffitiView) {
+        mGraffitiView = graffitiView;
+    }
+
+    /**
+     * 绘制线程发布新的图层后在绘制线程中调用
+     */
+    void onLayerPublished(LayerCompositor.Result result) {
+        mLayerResult = result;
+        post(mNotifyLayerPublished);
+    }
+
+    /**
+     * 绘制线程最近发布的图层，还没有发布时返回null
+     */
+    LayerCompositor.Result getLayerResult() {
+        return mLayerResult;
+    }
+
+    void post(RenderState state) {
+        mLastState = state;
+        if (mRenderThread != null) {
+            mRenderThread.post(state);
+        }
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        mRenderThread = new GraffitiRenderThread(this, mClearColor);
+        mRenderThread.setUndoMode(mUndoMode);
+        mRenderThread.setCheckpointInterval(mCheckpointInterval);
+        mRenderThread.setUndoMemoryBudget(mUndoMemoryBudget);
+        mRenderThread.start();
+        if (mLastState != null) {
+            mRenderThread.post(mLastState);
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mRenderThread.setSurface(null);
+        mRenderThread.quit();
+        mRenderThread = null;
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        if (mRenderThread != null) {
+            mRenderThread.setSurface(holder);
+        }
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        if (mRenderThread != null) {
+            mRenderThread.requestRedraw();
+        }
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        if (mRenderThread != null) {
+            mRenderThread.setSurface(null); // 等待正在进行的绘制结束
+        }
+    }
+}
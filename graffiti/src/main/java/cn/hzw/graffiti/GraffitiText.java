@@ -25,9 +25,11 @@ public class GraffitiText extends GraffitiSelectableItem {
         return mText;
     }
 
-    public void setText(String text) {
+    public synchronized void setText(String text) {
         mText = text;
         resetBounds(getBounds());
+        onBoundsChanged();
+        onContentChanged();
     }
 
     @Override
@@ -2,29 +2,32 @@ package cn.hzw.graffiti;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.DrawFilter;
 import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.PaintFlagsDrawFilter;
 import android.graphics.Path;
 import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.Region;
 import android.graphics.Shader;
 import android.os.Build;
+import android.os.SystemClock;
 import android.view.MotionEvent;
 import android.view.View;
 
+import java.util.ArrayList;
 import java.util.concurrent.CopyOnWriteArrayList;
 
+
 import cn.forward.androids.utils.ImageUtils;
 import cn.forward.androids.utils.Util;
 
 import static cn.hzw.graffiti.DrawUtil.GRAFFITI_PIXEL_UNIT;
 import static cn.hzw.graffiti.DrawUtil.computeAngle;
-import static cn.hzw.graffiti.DrawUtil.drawArrow;
 import static cn.hzw.graffiti.DrawUtil.drawCircle;
-import static cn.hzw.graffiti.DrawUtil.drawLine;
-import static cn.hzw.graffiti.DrawUtil.drawRect;
 
 /**
  * Created by huangziwei on 2016/9/3.
@@ -55,6 +58,22 @@ public class GraffitiView extends View {
         HOLLOW_RECT, // 空心矩形
     }
 
+    /**
+     * 撤销方式
+     */
+    public enum UndoMode {
+        CHECKPOINT, // 从最近的图层快照恢复，再重绘快照之后的路径
+        REGION, // 绘制路径前保存路径范围内的像素，撤销时直接贴回
+    }
+
+    /**
+     * 绘制方式，两种方式的涂鸦都保存在图层的图块（Bitmap）中，区别在于显示时如何合成原图、图层和元素
+     */
+    public enum RenderMode {
+        SOFTWARE, // 软件绘制，兼容所有版本
+        HARDWARE, // 硬件加速合成，平移、缩放和元素的绘制交给GPU。API 18以下的硬件加速不支持放大器的裁剪路径，仍使用软件绘制
+    }
+
     public static final int ERROR_INIT = -1;
     public static final int ERROR_SAVE = -2;
 
@@ -64,8 +83,16 @@ public class GraffitiView extends View {
 
     private Bitmap mBitmap; // 当前涂鸦的原图（旋转后）
     private Bitmap mBitmapEraser; // 橡皮擦底图
-    private Bitmap mGraffitiBitmap; // 用绘制涂鸦的图片
-    private Canvas mBitmapCanvas;
+    // 在后台线程中合成的涂鸦图层，按图块分配，叠加在原图之上
+    private final LayerCompositor mCompositor = new LayerCompositor(new LayerCompositor.Callback() {
+        @Override
+        public void onComposited(LayerCompositor.Result result) {
+            mLayerResult = result;
+            markDirty(null);
+        }
+    });
+    private LayerCompositor.Result mLayerResult; // 正在显示的涂鸦图层
+    private Rect mLayerClip = new Rect();
 
     private int mOriginalWidth, mOriginalHeight; // 初始图片的尺寸
     private float mOriginalPivotX, mOriginalPivotY; // 图片中心
@@ -78,13 +105,11 @@ public class GraffitiView extends View {
     private float mTransX = 0, mTransY = 0; // 图片在适应屏幕且处于居中位置的基础上的偏移量（ 图片真实偏移量为mCentreTranX + mTransX，View窗口坐标系上的偏移）
 
 
-    private BitmapShader mBitmapShader; // 主要用于盖章和橡皮擦（未设置底图）
-    private BitmapShader mBitmapShaderEraser; // 橡皮擦底图，当未设置橡皮擦底图时，mBitmapShaderEraser = mBitmapShader
     private Path mCurrPath; // 当前手写的路径
     private Path mTempPath;
     private CopyLocation mCopyLocation; // 仿制的定位器
 
-    private Paint mPaint;
+    private GraffitiRenderer mRenderer; // 在主线程中绘制路径和元素
     private int mTouchMode; // 触摸模式，用于判断单点或多点触摸
     private float mPaintSize;
     private GraffitiColor mColor; // 画笔底色
@@ -98,9 +123,8 @@ public class GraffitiView extends View {
 
 
     // 保存涂鸦操作，便于撤销
-    private CopyOnWriteArrayList<Undoable> mUndoStack = new CopyOnWriteArrayList<Undoable>();
-    private CopyOnWriteArrayList<GraffitiPath> mPathStack = new CopyOnWriteArrayList<GraffitiPath>();
-    private CopyOnWriteArrayList<GraffitiSelectableItem> mSelectableStack = new CopyOnWriteArrayList<>();
+    private final OperationLog mOperationLog = new OperationLog(); // 按顺序记录的涂鸦路径和可选择的元素
+    private final ItemSpatialIndex mItemIndex = new ItemSpatialIndex(); // 用于查找点击的元素
 
     private Pen mPen;
     private Shape mShape;
@@ -108,18 +132,80 @@ public class GraffitiView extends View {
     private float mTouchDownX, mTouchDownY, mLastTouchX, mLastTouchY, mTouchX, mTouchY;
     private Matrix mShaderMatrix; // 仿制图片的变化矩阵
     private Matrix mShaderMatrixEraser; // 橡皮擦底图的变化矩阵
-    private Matrix mShaderMatrixColor; // 画笔图片底图的变化矩阵
 
     private float mAmplifierRadius;
     private Path mAmplifierPath;
     private float mAmplifierScale = 0; // 放大镜的倍数
     private Paint mAmplifierPaint;
+    private Rect mAmplifierSrc = new Rect(); // 放大器采样的原图范围（图片坐标系）
+    private Rect mViewClip = new Rect(); // 画布可见的范围（图片坐标系），绘制放大器时是放大器覆盖的范围
+    private RectF mViewClipF = new RectF(), mLayerClipF = new RectF(), mPathBoundsF = new RectF();
+    private ArrayList<GraffitiSelectableItem> mVisibleItems = new ArrayList<>(); // 可见范围内的元素
     private int mAmplifierHorizonX; // 放大器的位置的x坐标，使其水平居中
 
     // 当前选择的文字信息
     private GraffitiSelectableItem mSelectedItem;
 
+    private RectF mDirtyRectF = new RectF(); // 触摸移动时需要刷新的区域（View坐标系）
+    private Rect mDirtyRect = new Rect();
+    private Rect mPendingDirty = new Rect(); // 等待下一帧刷新的区域
+    private boolean mIsPendingInvalidateAll; // 下一帧是否刷新全部
+    private boolean mIsScaling; // 是否正在持续缩放
+    private float mScalingSpeed, mScalingMin, mScalingMax, mScalingPivotX, mScalingPivotY;
+    private long mLastScalingFrameNanos;
+    private static final float SCALING_FIRST_STEP = 0.04f; // 开始缩放的第一帧推进的时间（秒），轻点按钮时也有明显的缩放
+    private StrokeSamples mTouchSamples = new StrokeSamples(); // 当前笔画的全部触摸点
+
+    // 预测笔画接下来的走向，临时绘制在笔画末尾，真实的触摸点到达后替换，不会保存到路径中
+    private final StrokePredictor mStrokePredictor = new StrokePredictor();
+    private boolean mIsStrokePrediction = true;
+    private final float[] mPredictXy = new float[StrokePredictor.MAX_POINTS * 2]; // 预测的触摸点（View坐标系）
+    private int mPredictCount; // 预测的点数，为0时没有预测
+    private final Path mPredictPath = new Path();
+    private final RectF mPredictDirtyF = new RectF(); // 预测的尾部的范围（View坐标系），下次刷新时需要擦除
+
+    private static final int MIN_TEXTURE_SIZE = 2048; // OpenGL ES 2.0保证支持的最大纹理尺寸
+    private RenderMode mRenderMode = RenderMode.SOFTWARE;
+    private boolean mIsHardwareUnsupported; // 图片超出了硬件加速支持的最大尺寸，只能使用软件绘制
+    private int mMaxTextureSize = MIN_TEXTURE_SIZE; // 硬件加速的画布能绘制的图片的最大边长，绘制时从画布中得到实际的值
+
+    private StrokeOverlayView mStrokeOverlay; // 低延迟模式下绘制当前笔画的覆盖层，为null时在View中绘制
+    private boolean mIsPendingOverlayClear; // 笔画已合并到图层，下一帧与View一起清空覆盖层
+    private long mInkEventTime; // 最早一个尚未绘制出来的触摸点的时间（SystemClock.uptimeMillis()）
+    private long mInkLatencySum; // 触摸点从产生到被绘制的累计耗时（毫秒）
+    private int mInkLatencyCount;
+
+    private GraffitiSurfaceView mRenderSurface; // 在单独线程中绘制的显示目标，为null时在View中绘制
+
+    private NavigatorView mNavigator; // 导航小地图，为null时不显示
+    private final RectF mNavigatorViewport = new RectF(); // 可见的范围（图片坐标系）
+    private final Rect mNavigatorClip = new Rect();
+    private Paint mNavigatorPaint;
+
+    // 移动和缩放手势期间只变换手势开始时的画面，不重新绘制路径和元素
+    private boolean mIsGesturing;
+    private Bitmap mGestureFrame; // 手势开始时的画面，手势结束后保留，下次手势复用
+    private Canvas mGestureCanvas;
+    private float mGestureLeft, mGestureTop, mGestureScale; // 截取画面时图片的位置和缩放倍数
+    private final RectF mGestureFrameRect = new RectF(); // 截取的画面在当前画面中的位置
+    private final Paint mGestureFramePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    // 草稿画质：输入期间不做抗锯齿和图片过滤，放大器降低分辨率，输入停止一段时间后以完整画质重新绘制一帧
+    private long mDraftRefineDelay; // 输入停止多久(ms)后完整绘制，小于等于0时不使用草稿画质
+    private boolean mIsDraft; // 当前是否以草稿画质绘制
+    private final DrawFilter mDraftFilter = new PaintFlagsDrawFilter(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG, 0);
+    private Bitmap mDraftAmplifier; // 草稿画质下放大器以一半的分辨率绘制到这里
+    private Canvas mDraftAmplifierCanvas;
+    private final Runnable mRefine = new Runnable() {
+        @Override
+        public void run() {
+            mIsDraft = false;
+            markDirty(null);
+        }
+    };
+
     private float mSelectedItemX, mSelectedItemY;
+    private final float[] mTempXy = new float[2]; // 坐标变换的临时结果，避免在触摸和绘制时分配内存
     private boolean mIsRotatingSelectedItem;
     private float mRotateTextDiff; // 开始旋转图片时的差值（当前图片与触摸点的角度）
 
@@ -138,10 +224,8 @@ public class GraffitiView extends View {
     public GraffitiView(Context context, Bitmap bitmap, String eraser, boolean eraserImageIsResizeable, GraffitiListener listener) {
         super(context);
 
-        // 关闭硬件加速，因为bitmap的Canvas不支持硬件加速
-        if (Build.VERSION.SDK_INT >= 11) {
-            setLayerType(LAYER_TYPE_SOFTWARE, null);
-        }
+        // 默认关闭硬件加速，可以通过setRenderMode()开启
+        applyRenderMode();
 
         mBitmap = bitmap;
         mGraffitiListener = listener;
@@ -170,12 +254,7 @@ public class GraffitiView extends View {
 
         mScale = 1f;
         mColor = new GraffitiColor(Color.RED);
-        mPaint = new Paint();
-        mPaint.setStrokeWidth(mPaintSize);
-        mPaint.setColor(mColor.getColor());
-        mPaint.setAntiAlias(true);
-        mPaint.setStrokeJoin(Paint.Join.ROUND);
-        mPaint.setStrokeCap(Paint.Cap.ROUND);// 圆滑
+        mRenderer = new GraffitiRenderer(mOriginalPivotX, mOriginalPivotY, false);
 
         mPen = Pen.HAND;
         mShape = Shape.HAND_WRITE;
@@ -186,8 +265,6 @@ public class GraffitiView extends View {
         mTempPath = new Path();
         mCopyLocation = new CopyLocation(150, 150);
 
-        mShaderMatrixColor = new Matrix();
-
         mAmplifierPaint = new Paint();
         mAmplifierPaint.setColor(0xaaffffff);
         mAmplifierPaint.setStyle(Paint.Style.STROKE);
@@ -208,6 +285,24 @@ public class GraffitiView extends View {
         }
     }
 
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent event) {
+        onInput(); // 包括移动缩放模式下交给OnTouchListener处理的手势
+        return super.dispatchTouchEvent(event);
+    }
+
+    /**
+     * 有输入时以草稿画质绘制，输入停止mDraftRefineDelay后完整绘制一帧
+     */
+    private void onInput() {
+        if (mDraftRefineDelay <= 0) {
+            return;
+        }
+        mIsDraft = true;
+        removeCallbacks(mRefine);
+        postDelayed(mRefine, mDraftRefineDelay);
+    }
+
     @Override
     public boolean onTouchEvent(MotionEvent event) {
         switch (event.getAction() & MotionEvent.ACTION_MASK) {
@@ -215,33 +310,30 @@ public class GraffitiView extends View {
                 mTouchMode = 1;
                 mTouchDownX = mTouchX = mLastTouchX = event.getX();
                 mTouchDownY = mTouchY = mLastTouchY = event.getY();
+                mTouchSamples.clear();
+                mTouchSamples.add(mTouchX, mTouchY, event.getEventTime());
+                mPredictCount = 0;
+                mPredictDirtyF.setEmpty();
 
                 if (isPenSelectable()) {
                     mIsRotatingSelectedItem = false;
                     if (mSelectedItem != null) {
                         if (mSelectedItem.isCanRotate(mGraffitiRotateDegree, toX(mTouchX), toY(mTouchY))) {
                             mIsRotatingSelectedItem = true;
-                            float[] xy = mSelectedItem.getXy(mGraffitiRotateDegree);
+                            mSelectedItem.getXy(mGraffitiRotateDegree, mTempXy);
                             mRotateTextDiff = mSelectedItem.getItemRotate() -
-                                    computeAngle(xy[0], xy[1], toX(mTouchX), toY(mTouchY));
+                                    computeAngle(mTempXy[0], mTempXy[1], toX(mTouchX), toY(mTouchY));
                         }
                     }
                     if (!mIsRotatingSelectedItem) {
-                        boolean found = false;
-                        GraffitiSelectableItem item;
-                        for (int i = mSelectableStack.size() - 1; i >= 0; i--) {
-                            item = mSelectableStack.get(i);
-                            if (item.isInIt(mGraffitiRotateDegree, toX(mTouchX), toY(mTouchY), mPen)) {
-                                found = true;
-                                mSelectedItem = item;
-                                float[] xy = item.getXy(mGraffitiRotateDegree);
-                                mSelectedItemX = xy[0];
-                                mSelectedItemY = xy[1];
-                                mGraffitiListener.onSelectedItem(mSelectedItem, true);
-                                break;
-                            }
-                        }
-                        if (!found) {
+                        GraffitiSelectableItem item = mItemIndex.hitTest(toX(mTouchX), toY(mTouchY), mPen);
+                        if (item != null) {
+                            mSelectedItem = item;
+                            item.getXy(mGraffitiRotateDegree, mTempXy);
+                            mSelectedItemX = mTempXy[0];
+                            mSelectedItemY = mTempXy[1];
+                            mGraffitiListener.onSelectedItem(mSelectedItem, true);
+                        } else {
                             if (mSelectedItem != null) { // 取消选定
                                 GraffitiSelectableItem old = mSelectedItem;
                                 mSelectedItem = null;
@@ -273,9 +365,17 @@ public class GraffitiView extends View {
 
                         }
                         mIsPainting = true;
+                        mInkEventTime = event.getEventTime();
+                        if (mStrokeOverlay != null) {
+                            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                                // 触摸点到达后立即分发，不与屏幕刷新对齐
+                                requestUnbufferedDispatch(event);
+                            }
+                            mStrokeOverlay.invalidate();
+                        }
                     }
                 }
-                invalidate();
+                markDirty(null);
                 return true;
             case MotionEvent.ACTION_UP:
             case MotionEvent.ACTION_CANCEL:
@@ -321,25 +421,28 @@ public class GraffitiView extends View {
                                     toX(mTouchDownX), toY(mTouchDownY), toX(mTouchX), toY(mTouchY), mGraffitiRotateDegree, mOriginalPivotX, mOriginalPivotY,
                                     getCopyLocation());
                         }
-                        addPath(path);
+                        addPath(path); // 预测的尾部不属于路径
                         mIsPainting = false;
+                        mPredictCount = 0;
+                        mPredictDirtyF.setEmpty();
+                        mIsPendingOverlayClear = mStrokeOverlay != null;
                     }
                 }
 
-                invalidate();
+                markDirty(null);
                 return true;
             case MotionEvent.ACTION_MOVE:
                 if (mTouchMode < 2) { // 单点滑动
-                    mLastTouchX = mTouchX;
-                    mLastTouchY = mTouchY;
-                    mTouchX = event.getX();
-                    mTouchY = event.getY();
-
                     if (isPenSelectable()) {
+                        // 移动元素只需要最新的触摸点
+                        mLastTouchX = mTouchX;
+                        mLastTouchY = mTouchY;
+                        mTouchX = event.getX();
+                        mTouchY = event.getY();
                         if (mIsRotatingSelectedItem) {
-                            float[] xy = mSelectedItem.getXy(mGraffitiRotateDegree);
+                            mSelectedItem.getXy(mGraffitiRotateDegree, mTempXy);
                             mSelectedItem.setItemRotate(mRotateTextDiff + computeAngle(
-                                    xy[0], xy[1], toX(mTouchX), toY(mTouchY)
+                                    mTempXy[0], mTempXy[1], toX(mTouchX), toY(mTouchY)
                             ));
                         } else {
                             if (mSelectedItem != null) {
@@ -348,41 +451,23 @@ public class GraffitiView extends View {
                                         mSelectedItemY + toY(mTouchY) - toY(mTouchDownY));
                             }
                         }
+                        markDirty(null);
                     } else {
-                        if (mPen == Pen.COPY && mCopyLocation.isRelocating()) {
-                            // 正在定位location
-                            mCopyLocation.updateLocation(toX(mTouchX), toY(mTouchY));
-                        } else {
-                            if (mPen == Pen.COPY) {
-                                mCopyLocation.updateLocation(mCopyLocation.getCopyStartX() + toX(mTouchX) - mCopyLocation.getTouchStartX(),
-                                        mCopyLocation.getCopyStartY() + toY(mTouchY) - mCopyLocation.getTouchStartY());
-                            }
-                            if (mShape == Shape.HAND_WRITE) { // 手写
-                                mCurrPath.quadTo(
-                                        toX(mLastTouchX),
-                                        toY(mLastTouchY),
-                                        toX((mTouchX + mLastTouchX) / 2),
-                                        toY((mTouchY + mLastTouchY) / 2));
-                            } else { // 画图形
-
-                            }
-                        }
+                        onTouchMoveDrawing(event);
                     }
                 } else { // 多点
-
+                    markDirty(null);
                 }
-
-                invalidate();
                 return true;
             case MotionEvent.ACTION_POINTER_UP:
                 mTouchMode -= 1;
 
-                invalidate();
+                markDirty(null);
                 return true;
             case MotionEvent.ACTION_POINTER_DOWN:
                 mTouchMode += 1;
 
-                invalidate();
+                markDirty(null);
                 return true;
         }
         return super.
@@ -390,6 +475,277 @@ public class GraffitiView extends View {
                 onTouchEvent(event);
     }
 
+    /**
+     * 绘制时手指移动
+     * 系统会把两帧之间的多个触摸点合并到同一个事件中，这里按顺序读取全部历史触摸点及其时间，使快速划过的笔画保持平滑，
+     * 并把这些触摸点引起的变化合并成一次刷新，在下一帧统一绘制
+     */
+    private void onTouchMoveDrawing(MotionEvent event) {
+        float startTouchX = mTouchX, startTouchY = mTouchY; // 该事件之前的触摸点
+        float copyX = mCopyLocation.getX(), copyY = mCopyLocation.getY();
+        mDirtyRectF.setEmpty();
+        float strokeWidth = mPaintSize * mPrivateScale * mScale;
+
+        int historySize = event.getHistorySize();
+        for (int h = 0; h <= historySize; h++) {
+            float x, y;
+            long time;
+            if (h < historySize) {
+                x = event.getHistoricalX(h);
+                y = event.getHistoricalY(h);
+                time = event.getHistoricalEventTime(h);
+            } else {
+                x = event.getX();
+                y = event.getY();
+                time = event.getEventTime();
+            }
+            float prevTouchX = mLastTouchX, prevTouchY = mLastTouchY;
+            mLastTouchX = mTouchX;
+            mLastTouchY = mTouchY;
+            mTouchX = x;
+            mTouchY = y;
+            mTouchSamples.add(x, y, time);
+
+            if (mPen == Pen.COPY && mCopyLocation.isRelocating()) {
+                // 正在定位location
+                mCopyLocation.updateLocation(toX(mTouchX), toY(mTouchY));
+            } else {
+                if (mPen == Pen.COPY) {
+                    mCopyLocation.updateLocation(mCopyLocation.getCopyStartX() + toX(mTouchX) - mCopyLocation.getTouchStartX(),
+                            mCopyLocation.getCopyStartY() + toY(mTouchY) - mCopyLocation.getTouchStartY());
+                }
+                if (mShape == Shape.HAND_WRITE) { // 手写
+                    mCurrPath.quadTo(
+                            toX(mLastTouchX),
+                            toY(mLastTouchY),
+                            toX((mTouchX + mLastTouchX) / 2),
+                            toY((mTouchY + mLastTouchY) / 2));
+                    if (mIsPainting && mStrokeOverlay == null) {
+                        unionSegmentDirty(prevTouchX, prevTouchY, strokeWidth);
+                    }
+                } else { // 画图形，只需要最后的触摸点
+
+                }
+            }
+        }
+
+        if (mIsPainting && mShape == Shape.HAND_WRITE) {
+            updatePrediction(strokeWidth);
+        }
+        if (mIsPainting) {
+            if (mInkEventTime == 0) {
+                mInkEventTime = event.getEventTime();
+            }
+            if (mStrokeOverlay != null) { // 覆盖层只绘制笔画，立即刷新
+                mStrokeOverlay.invalidate();
+            }
+        }
+        invalidateTouchMove(startTouchX, startTouchY, copyX, copyY, strokeWidth);
+    }
+
+    /**
+     * 根据最新的触摸点重新预测笔画的尾部，并刷新新旧尾部的范围
+     */
+    private void updatePrediction(float strokeWidth) {
+        if (mStrokeOverlay == null && !mPredictDirtyF.isEmpty()) { // 擦除上一次预测的尾部
+            mDirtyRectF.union(mPredictDirtyF);
+        }
+        mPredictDirtyF.setEmpty();
+        mPredictCount = mIsStrokePrediction ? mStrokePredictor.predict(mTouchSamples, mPredictXy) : 0;
+        if (mPredictCount == 0) {
+            return;
+        }
+        // 尾部从已绘制的路径终点开始，经过当前触摸点到预测的点
+        float startX = (mTouchX + mLastTouchX) / 2, startY = (mTouchY + mLastTouchY) / 2;
+        mPredictDirtyF.set(Math.min(startX, mTouchX), Math.min(startY, mTouchY),
+                Math.max(startX, mTouchX), Math.max(startY, mTouchY));
+        for (int i = 0; i < mPredictCount; i++) {
+            mPredictDirtyF.union(mPredictXy[i * 2], mPredictXy[i * 2 + 1]);
+        }
+        float padding = strokeWidth + 2;
+        mPredictDirtyF.inset(-padding, -padding);
+        if (mStrokeOverlay == null) {
+            mDirtyRectF.union(mPredictDirtyF);
+        }
+    }
+
+    // 新增的二次贝塞尔曲线片段：从上一段的终点，经过控制点mLastTouch，到这一段的终点
+    private void unionSegmentDirty(float prevTouchX, float prevTouchY, float strokeWidth) {
+        float startX = (prevTouchX + mLastTouchX) / 2, startY = (prevTouchY + mLastTouchY) / 2;
+        float endX = (mTouchX + mLastTouchX) / 2, endY = (mTouchY + mLastTouchY) / 2;
+        unionDirty(Math.min(startX, Math.min(endX, mLastTouchX)), Math.min(startY, Math.min(endY, mLastTouchY)),
+                Math.max(startX, Math.max(endX, mLastTouchX)), Math.max(startY, Math.max(endY, mLastTouchY)), strokeWidth);
+    }
+
+    /**
+     * 在路径片段的范围之外，再加上定位器、图形和放大器在事件前后变化的区域，安排刷新
+     *
+     * @param startTouchX 事件之前的触摸点
+     * @param startTouchY
+     * @param copyX       仿制定位器移动前的位置（图片坐标系）
+     * @param copyY
+     */
+    private void invalidateTouchMove(float startTouchX, float startTouchY, float copyX, float copyY, float strokeWidth) {
+        if (mPen == Pen.COPY) {
+            float radius = mPaintSize * 3 / 4 * mPrivateScale * mScale; // 定位器外圈的半径，包括边框
+            unionDirty(toTouchX(copyX), toTouchY(copyY), toTouchX(copyX), toTouchY(copyY), radius);
+            unionDirty(toTouchX(mCopyLocation.getX()), toTouchY(mCopyLocation.getY()),
+                    toTouchX(mCopyLocation.getX()), toTouchY(mCopyLocation.getY()), radius);
+        }
+
+        if (mIsPainting && mStrokeOverlay == null && mShape != Shape.HAND_WRITE && !(mPen == Pen.COPY && mCopyLocation.isRelocating())) {
+            // 图形在移动前后的范围，箭头的尖端会超出端点约一个笔触宽度
+            unionShapeDirty(startTouchX, startTouchY, strokeWidth * 2);
+            unionShapeDirty(mTouchX, mTouchY, strokeWidth * 2);
+        }
+
+        if (mAmplifierScale > 0) { // 放大器的内容随触摸点变化，位置也可能在顶部和底部之间切换
+            unionAmplifierDirty(startTouchY);
+            unionAmplifierDirty(mTouchY);
+        }
+
+        if (!mDirtyRectF.isEmpty()) {
+            mDirtyRectF.roundOut(mDirtyRect);
+            markDirty(mDirtyRect);
+        }
+    }
+
+    /**
+     * 标记需要刷新，在下一帧统一刷新，同一帧内的多次标记合并成一次绘制
+     *
+     * @param dirty 需要刷新的区域（View坐标系），为null时刷新全部
+     */
+    private void markDirty(Rect dirty) {
+        if (dirty == null) {
+            mIsPendingInvalidateAll = true;
+        } else {
+            mPendingDirty.union(dirty);
+        }
+        mFrameScheduler.schedule();
+    }
+
+    private final FrameScheduler mFrameScheduler = new FrameScheduler(new FrameScheduler.Callback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            onFrame(frameTimeNanos);
+        }
+    });
+
+    /**
+     * 每一帧先推进持续的动作，再把这一帧内标记的区域一次性刷新
+     */
+    private void onFrame(long frameTimeNanos) {
+        if (mIsScaling) {
+            stepScaling(frameTimeNanos);
+        }
+        if (mRenderSurface != null) { // 只提交状态的快照，由绘制线程绘制
+            if (mIsPendingInvalidateAll || !mPendingDirty.isEmpty()) {
+                RenderState state = createRenderState();
+                if (mIsPainting && mStrokeOverlay == null) { // 由绘制线程在提交显示后统计
+                    state.mInkEventTime = mInkEventTime;
+                    mInkEventTime = 0;
+                }
+                mRenderSurface.post(state);
+            }
+        } else if (mIsPendingInvalidateAll) {
+            invalidate();
+        } else if (!mPendingDirty.isEmpty()) {
+            invalidate(mPendingDirty);
+        }
+        if (mIsPendingInvalidateAll && mNavigator != null) { // 图片移动缩放或图层合成完成，正在绘制的笔画不影响小地图
+            mNavigator.invalidate();
+        }
+        mIsPendingInvalidateAll = false;
+        mPendingDirty.setEmpty();
+        if (mIsPendingOverlayClear) { // 与合并了笔画的图层在同一帧显示，避免笔画闪烁
+            mIsPendingOverlayClear = false;
+            if (mStrokeOverlay != null) {
+                mStrokeOverlay.invalidate();
+            }
+        }
+    }
+
+    /**
+     * 开始围绕View中心持续缩放，直到调用{@link #stopScaling()}或到达缩放范围的边界
+     * 缩放按每一帧实际经过的时间推进，速度与帧率和设备负载无关
+     *
+     * @param speed    每秒缩放倍数的变化，负数表示缩小
+     * @param minScale 最小缩放倍数
+     * @param maxScale 最大缩放倍数
+     */
+    public void startScaling(float speed, float minScale, float maxScale) {
+        mScalingSpeed = speed;
+        mScalingMin = minScale;
+        mScalingMax = maxScale;
+        mScalingPivotX = toX(getWidth() / 2);
+        mScalingPivotY = toY(getHeight() / 2);
+        if (!mIsScaling) {
+            mIsScaling = true;
+            mLastScalingFrameNanos = 0;
+            mFrameScheduler.schedule();
+        }
+    }
+
+    public void stopScaling() {
+        mIsScaling = false;
+    }
+
+    public boolean isScaling() {
+        return mIsScaling;
+    }
+
+    private void stepScaling(long frameTimeNanos) {
+        onInput(); // 按住缩放按钮期间同样以草稿画质绘制
+        float scale = mScale;
+        if (mLastScalingFrameNanos == 0) { // 第一帧立即响应，与按下按钮时的步进相同
+            scale += mScalingSpeed * SCALING_FIRST_STEP;
+        } else {
+            scale += mScalingSpeed * (frameTimeNanos - mLastScalingFrameNanos) / 1e9f;
+        }
+        mLastScalingFrameNanos = frameTimeNanos;
+        if (scale >= mScalingMax) {
+            scale = mScalingMax;
+            mIsScaling = false;
+        } else if (scale <= mScalingMin) {
+            scale = mScalingMin;
+            mIsScaling = false;
+        }
+        setScale(scale, mScalingPivotX, mScalingPivotY); // 会安排下一帧
+        if (mIsScaling) {
+            mFrameScheduler.schedule();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mIsScaling = false;
+        mFrameScheduler.cancel();
+    }
+
+    // 图形从按下的位置绘制到(x,y)时的范围
+    private void unionShapeDirty(float x, float y, float padding) {
+        if (mShape == Shape.FILL_CIRCLE || mShape == Shape.HOLLOW_CIRCLE) {
+            float radius = (float) Math.sqrt((x - mTouchDownX) * (x - mTouchDownX) + (y - mTouchDownY) * (y - mTouchDownY));
+            unionDirty(mTouchDownX - radius, mTouchDownY - radius, mTouchDownX + radius, mTouchDownY + radius, padding);
+        } else {
+            unionDirty(mTouchDownX, mTouchDownY, x, y, padding);
+        }
+    }
+
+    // 触摸点的y坐标为touchY时放大器的范围
+    private void unionAmplifierDirty(float touchY) {
+        float top = touchY <= mAmplifierRadius * 2 ? getHeight() - mAmplifierRadius * 2 : 0;
+        unionDirty(mAmplifierHorizonX, top, mAmplifierHorizonX + mAmplifierRadius * 2, top + mAmplifierRadius * 2,
+                mAmplifierPaint.getStrokeWidth());
+    }
+
+    private void unionDirty(float left, float top, float right, float bottom, float padding) {
+        padding += 2; // 抗锯齿的边缘
+        mDirtyRectF.union(Math.min(left, right) - padding, Math.min(top, bottom) - padding,
+                Math.max(left, right) + padding, Math.max(top, bottom) + padding);
+    }
+
     private int mGraffitiRotateDegree = 0; // 相对于初始图片旋转的角度
 
     public int getGraffitiRotateDegree() {
@@ -420,27 +776,25 @@ public class GraffitiView extends View {
         int r = degree - mGraffitiRotateDegree;
         int originalDegree = mGraffitiRotateDegree;
         mGraffitiRotateDegree = degree;
+        mRenderer.setRotateDegree(degree);
 
-        mBitmap = ImageUtils.rotate(mBitmap, r, true);
+        // 后台线程可能仍在使用旋转前的图片，由GC回收
+        mBitmap = ImageUtils.rotate(mBitmap, r, false);
         if (mBitmapEraser != null) {
-            mBitmapEraser = ImageUtils.rotate(mBitmapEraser, r, true);
+            mBitmapEraser = ImageUtils.rotate(mBitmapEraser, r, false);
         }
         setBG();
+        applyOverlayLayerType();
 
         mCopyLocation.rotatePosition(originalDegree, mGraffitiRotateDegree, mOriginalPivotX, mOriginalPivotY);
+        mItemIndex.setRotateDegree(mGraffitiRotateDegree);
 
-        invalidate();
+        markDirty(null);
 
     }
 
     private void setBG() {// 不用resize preview
-        this.mBitmapShader = new BitmapShader(this.mBitmap, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
-
-        if (mBitmapEraser != null) {
-            this.mBitmapShaderEraser = new BitmapShader(this.mBitmapEraser, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
-        } else {
-            this.mBitmapShaderEraser = mBitmapShader;
-        }
+        mRenderer.setBitmap(mBitmap, mBitmapEraser);
 
         int w = mBitmap.getWidth();
         int h = mBitmap.getHeight();
@@ -459,12 +813,8 @@ public class GraffitiView extends View {
         mCentreTranX = (getWidth() - mPrivateWidth) / 2f;
         mCentreTranY = (getHeight() - mPrivateHeight) / 2f;
 
-        initCanvas();
         resetMatrix();
-
-        if (mPathStack.size() > 0) {
-            draw(mBitmapCanvas, mPathStack);
-        }
+        compositeLayer(); // 图片尺寸或旋转角度改变时重建图层
 
         mAmplifierRadius = Math.min(getWidth(), getHeight()) / 4;
         mAmplifierPath = new Path();
@@ -477,18 +827,41 @@ public class GraffitiView extends View {
             mPaintSize = 30 * GRAFFITI_PIXEL_UNIT;
         }
 
-        invalidate();
+        markDirty(null);
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
-        if (mBitmap.isRecycled() || mGraffitiBitmap.isRecycled()) {
+        if (mBitmap.isRecycled() || mRenderSurface != null) {
+            return;
+        }
+        if (!mIsHardwareUnsupported && isTooLargeForCanvas(canvas)) {
+            // 图片无法作为纹理上传，退回软件绘制，下一帧重新绘制
+            mIsHardwareUnsupported = true;
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    applyRenderMode();
+                    markDirty(null);
+                }
+            });
             return;
         }
 
+        DrawFilter drawFilter = canvas.getDrawFilter(); // 软件绘制时画布与其它View共用，绘制完后恢复
+        if (mIsDraft) {
+            canvas.setDrawFilter(mDraftFilter);
+        }
         canvas.save();
-        doDraw(canvas);
+        if (mIsGesturing) {
+            drawGestureFrame(canvas);
+        } else {
+            doDraw(canvas, false);
+        }
         canvas.restore();
+        if (mIsPainting && mStrokeOverlay == null) {
+            onInkDrawn();
+        }
 
         if (mAmplifierScale > 0) { //启用放大镜
             canvas.save();
@@ -501,70 +874,103 @@ public class GraffitiView extends View {
             canvas.clipPath(mAmplifierPath);
             canvas.drawColor(0xff000000);
 
-            canvas.save();
-            float scale = mAmplifierScale / mScale; // 除以mScale，无论当前图片缩放多少，都产生图片在居中状态下缩放mAmplifierScale倍的效果
-            canvas.scale(scale, scale);
-            canvas.translate(-mTouchX + mAmplifierRadius / scale, -mTouchY + mAmplifierRadius / scale);
-            doDraw(canvas);
-            canvas.restore();
+            if (!mIsDraft || !drawDraftAmplifier(canvas)) {
+                canvas.save();
+                float scale = mAmplifierScale / mScale; // 除以mScale，无论当前图片缩放多少，都产生图片在居中状态下缩放mAmplifierScale倍的效果
+                canvas.scale(scale, scale);
+                canvas.translate(-mTouchX + mAmplifierRadius / scale, -mTouchY + mAmplifierRadius / scale);
+                doDraw(canvas, true); // 只绘制放大器范围内的内容
+                canvas.restore();
+            }
 
             // 画放大器的边框
             drawCircle(canvas, mAmplifierRadius, mAmplifierRadius, mAmplifierRadius, mAmplifierPaint);
             canvas.restore();
         }
+        canvas.setDrawFilter(drawFilter);
+
+    }
+
+    /**
+     * 以一半的分辨率绘制放大器的内容，再放大到放大器中，需要采样的像素只有四分之一
+     *
+     * @return 内存不足时返回false，按完整分辨率绘制
+     */
+    private boolean drawDraftAmplifier(Canvas canvas) {
+        int size = (int) Math.ceil(mAmplifierRadius);
+        if (mDraftAmplifier == null || mDraftAmplifier.getWidth() != size) {
+            mDraftAmplifier = null;
+            try {
+                mDraftAmplifier = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+            } catch (OutOfMemoryError e) {
+                return false;
+            }
+            mDraftAmplifierCanvas = new Canvas(mDraftAmplifier);
+            mDraftAmplifierCanvas.setDrawFilter(mDraftFilter);
+        }
+        mDraftAmplifier.eraseColor(0xff000000);
+        int count = mDraftAmplifierCanvas.save();
+        float scale = mAmplifierScale / mScale;
+        mDraftAmplifierCanvas.scale(0.5f * scale, 0.5f * scale);
+        mDraftAmplifierCanvas.translate(-mTouchX + mAmplifierRadius / scale, -mTouchY + mAmplifierRadius / scale);
+        doDraw(mDraftAmplifierCanvas, true);
+        mDraftAmplifierCanvas.restoreToCount(count);
 
+        canvas.save();
+        canvas.scale(2, 2);
+        canvas.drawBitmap(mDraftAmplifier, 0, 0, null);
+        canvas.restore();
+        return true;
     }
 
-    private void doDraw(Canvas canvas) {
+    /**
+     * @param isAmplifier 是否在绘制放大器。放大器只采样它覆盖的一小块区域：原图的局部、相交的图块和元素，以及正在绘制的路径，
+     *                    开销与放大器的面积有关，而与涂鸦的复杂程度无关
+     */
+    private void doDraw(Canvas canvas, boolean isAmplifier) {
         float left = mCentreTranX + mTransX;
         float top = mCentreTranY + mTransY;
 
         // 画布和图片共用一个坐标系，只需要处理屏幕坐标系到图片（画布）坐标系的映射关系
         canvas.translate(left, top); // 偏移画布
         canvas.scale(mPrivateScale * mScale, mPrivateScale * mScale); // 缩放画布
+        canvas.getClipBounds(mViewClip); // 可见范围之外的路径和元素不绘制
 
         canvas.save();
         if (!mIsDrawableOutside) { // 裁剪绘制区域为图片区域
             canvas.clipRect(0, 0, mBitmap.getWidth(), mBitmap.getHeight());
         }
-
+        canvas.getClipBounds(mLayerClip);
+
+        // 缩小显示时绘制原图和图层的缩小图，放大器总是使用原图
+        LayerCompositor.Result result = mLayerResult;
+        int level = isAmplifier || result == null ? 0 : result.mMipmap.getLevel(mBitmap, mPrivateScale * mScale);
+        if (isAmplifier) {
+            mAmplifierSrc.set(mLayerClip);
+            if (mAmplifierSrc.intersect(0, 0, mBitmap.getWidth(), mBitmap.getHeight())) {
+                canvas.drawBitmap(mBitmap, mAmplifierSrc, mAmplifierSrc, null);
+            }
+        } else {
+            drawBitmap(canvas, result, level);
+        }
         if (isJustDrawOriginal) { // 只绘制原图
-            canvas.drawBitmap(mBitmap, 0, 0, null);
             return;
         }
 
-        // 绘制涂鸦
-        canvas.drawBitmap(mGraffitiBitmap, 0, 0, null);
-
-        if (mIsPainting) {  //画在view的画布上
-            Path path;
-            float span = 0;
-            // 为了仅点击时也能出现绘图，必须移动path
-            if (mTouchDownX == mTouchX && mTouchDownY == mTouchY && mTouchDownX == mLastTouchX && mTouchDownY == mLastTouchY) {
-                mTempPath.reset();
-                mTempPath.addPath(mCurrPath);
-                mTempPath.quadTo(
-                        toX(mLastTouchX),
-                        toY(mLastTouchY),
-                        toX((mTouchX + mLastTouchX + VALUE) / 2),
-                        toY((mTouchY + mLastTouchY + VALUE) / 2));
-                path = mTempPath;
-                span = VALUE;
-            } else {
-                path = mCurrPath;
-                span = 0;
-            }
-            // 画触摸的路径
-            mPaint.setStrokeWidth(mPaintSize);
-            if (mShape == Shape.HAND_WRITE) { // 手写
-                draw(canvas, mPen, mPaint, path, mPen == Pen.ERASER ? mShaderMatrixEraser : mShaderMatrix,
-                        mColor, mGraffitiRotateDegree);
-            } else {  // 画图形
-                draw(canvas, mPen, mShape, mPaint,
-                        toX(mTouchDownX), toY(mTouchDownY), toX(mTouchX + span), toY(mTouchY + span),
-                        mPen == Pen.ERASER ? mShaderMatrixEraser : mShaderMatrix, mColor, mGraffitiRotateDegree);
+        // 绘制涂鸦，只叠加可见范围内已分配的图块，后台线程尚未合成的路径在可见范围内时直接绘制
+        OperationLog.Snapshot<GraffitiPath> paths = mOperationLog.snapshotPaths();
+        mLayerClipF.set(mLayerClip);
+        for (int i = drawLayer(canvas, result, level, paths); i < paths.size(); i++) {
+            GraffitiPath path = paths.get(i);
+            path.computeBounds(mRenderer.getRotateMatrix(path), mPathBoundsF);
+            if (RectF.intersects(mPathBoundsF, mLayerClipF)) {
+                mRenderer.drawPath(canvas, path);
             }
         }
+
+        if (mIsPainting && (isAmplifier || mStrokeOverlay == null)) {  //画在view的画布上，低延迟模式下画在覆盖层上
+            drawCurrentStroke(canvas);
+        }
         canvas.restore();
 
 
@@ -572,155 +978,413 @@ public class GraffitiView extends View {
             mCopyLocation.drawItSelf(canvas, mPaintSize);
         }
 
-        for (GraffitiSelectableItem item : mSelectableStack) {
-            draw(canvas, item);
+        // 只绘制与可见范围相交的元素
+        mViewClipF.set(mViewClip);
+        if (mItemIndex.coversMost(mViewClipF)) { // 大部分元素都可见，按层级逐个检查即可
+            OperationLog.Snapshot<GraffitiSelectableItem> items = mOperationLog.snapshotItems();
+            for (int i = 0; i < items.size(); i++) {
+                GraffitiSelectableItem item = items.get(i);
+                if (mItemIndex.intersects(item, mViewClipF)) {
+                    mVisibleItems.add(item);
+                }
+            }
+        } else {
+            mItemIndex.query(mViewClipF, mVisibleItems);
+        }
+        if (mSelectedItem != null && !mVisibleItems.contains(mSelectedItem)) { // 选中框和旋转标志超出元素本身的范围
+            mVisibleItems.add(mSelectedItem);
+        }
+        for (int i = 0; i < mVisibleItems.size(); i++) {
+            // 放大器只绘制一小块，不使用缓存，避免与View交替使用不同的档位
+            drawItem(canvas, mVisibleItems.get(i), isAmplifier ? 0 : mPrivateScale * mScale);
         }
+        mVisibleItems.clear();
     }
 
-    private void draw(Canvas canvas, Pen pen, Paint paint, Path path, Matrix matrix, GraffitiColor color, int degree) {
-        resetPaint(pen, paint, matrix, color, degree);
-
-        paint.setStyle(Paint.Style.STROKE);
-        canvas.drawPath(path, paint);
+    /**
+     * 绘制原图，画布已变换到图片坐标系
+     *
+     * @param level 绘制原图的第几级缩小图，0表示原图本身
+     */
+    private void drawBitmap(Canvas canvas, LayerCompositor.Result result, int level) {
+        if (level > 0) {
+            result.mMipmap.drawBitmap(canvas, level);
+        } else {
+            canvas.drawBitmap(mBitmap, 0, 0, null);
+        }
     }
 
-    private void draw(Canvas canvas, Pen pen, Shape shape, Paint paint, float sx, float sy, float dx, float dy, Matrix matrix, GraffitiColor color, int degree) {
-        resetPaint(pen, paint, matrix, color, degree);
+    /**
+     * 手势期间按当前的位置和缩放绘制手势开始时的画面
+     * 移出画面而新露出的区域只绘制原图和已合成的图层，手势结束后再完整绘制
+     */
+    private void drawGestureFrame(Canvas canvas) {
+        float left = mCentreTranX + mTransX;
+        float top = mCentreTranY + mTransY;
+        float scale = mPrivateScale * mScale;
+        float ratio = scale / mGestureScale;
+        mGestureFrameRect.set(left - mGestureLeft * ratio, top - mGestureTop * ratio,
+                left + (mGestureFrame.getWidth() - mGestureLeft) * ratio, top + (mGestureFrame.getHeight() - mGestureTop) * ratio);
+
+        if (!mGestureFrameRect.contains(0, 0, getWidth(), getHeight())) {
+            canvas.save();
+            canvas.clipRect(mGestureFrameRect, Region.Op.DIFFERENCE);
+            canvas.translate(left, top);
+            canvas.scale(scale, scale);
+            if (!mIsDrawableOutside) {
+                canvas.clipRect(0, 0, mBitmap.getWidth(), mBitmap.getHeight());
+            }
+            canvas.getClipBounds(mLayerClip);
+            LayerCompositor.Result result = mLayerResult;
+            int level = result == null ? 0 : result.mMipmap.getLevel(mBitmap, scale);
+            drawBitmap(canvas, result, level);
+            if (!isJustDrawOriginal) {
+                drawLayer(canvas, result, level, mOperationLog.snapshotPaths());
+            }
+            canvas.restore();
+        }
+        canvas.drawBitmap(mGestureFrame, null, mGestureFrameRect, mGestureFramePaint);
+    }
 
-        paint.setStyle(Paint.Style.STROKE);
+    /**
+     * 开始移动或缩放手势，截取当前的画面，之后直到{@link #stopGesture()}都只变换这个画面，
+     * 每一帧的开销与路径和元素的数量无关。使用绘制线程时不截取画面
+     */
+    public void startGesture() {
+        if (mIsGesturing || mRenderSurface != null || getWidth() <= 0 || getHeight() <= 0) {
+            return;
+        }
+        if (mGestureFrame == null || mGestureFrame.getWidth() != getWidth() || mGestureFrame.getHeight() != getHeight()) {
+            mGestureFrame = null;
+            try {
+                mGestureFrame = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+            } catch (OutOfMemoryError e) { // 内存不足时正常绘制
+                return;
+            }
+            mGestureCanvas = new Canvas(mGestureFrame);
+        }
+        mGestureFrame.eraseColor(Color.TRANSPARENT);
+        int count = mGestureCanvas.save();
+        doDraw(mGestureCanvas, false);
+        mGestureCanvas.restoreToCount(count);
+        mGestureLeft = mCentreTranX + mTransX;
+        mGestureTop = mCentreTranY + mTransY;
+        mGestureScale = mPrivateScale * mScale;
+        mIsGesturing = true;
+    }
 
-        switch (shape) { // 绘制图形
-            case ARROW:
-                paint.setStyle(Paint.Style.FILL);
-                drawArrow(canvas, sx, sy, dx, dy, paint);
-                break;
-            case LINE:
-                drawLine(canvas, sx, sy, dx, dy, paint);
-                break;
-            case FILL_CIRCLE:
-                paint.setStyle(Paint.Style.FILL);
-            case HOLLOW_CIRCLE:
-                drawCircle(canvas, sx, sy,
-                        (float) Math.sqrt((sx - dx) * (sx - dx) + (sy - dy) * (sy - dy)), paint);
-                break;
-            case FILL_RECT:
-                paint.setStyle(Paint.Style.FILL);
-            case HOLLOW_RECT:
-                drawRect(canvas, sx, sy, dx, dy, paint);
-                break;
-            default:
-                throw new RuntimeException("unknown shape:" + shape);
+    /**
+     * 结束手势，完整地重新绘制
+     */
+    public void stopGesture() {
+        if (!mIsGesturing) {
+            return;
         }
+        mIsGesturing = false;
+        markDirty(null);
+    }
+
+    public boolean isGesturing() {
+        return mIsGesturing;
     }
 
-    private void draw(Canvas canvas, CopyOnWriteArrayList<GraffitiPath> pathStack) {
-        // 还原堆栈中的记录的操作
-        for (GraffitiPath path : pathStack) {
-            draw(canvas, path);
+    /**
+     * 绘制正在绘制的路径，画布已变换到图片坐标系
+     */
+    private void drawCurrentStroke(Canvas canvas) {
+        boolean isTap = isTapping();
+        float span = isTap ? VALUE : 0;
+        // 画触摸的路径
+        if (mShape == Shape.HAND_WRITE) { // 手写
+            mRenderer.drawStroke(canvas, mPen, mPaintSize, isTap ? getTapPath() : mCurrPath, getCurrentShaderMatrix(), mColor);
+            if (mPredictCount > 0 && !isTap) {
+                mRenderer.drawStroke(canvas, mPen, mPaintSize, getPredictionPath(), getCurrentShaderMatrix(), mColor);
+            }
+        } else {  // 画图形
+            mRenderer.drawShape(canvas, mPen, mShape, mPaintSize,
+                    toX(mTouchDownX), toY(mTouchDownY), toX(mTouchX + span), toY(mTouchY + span),
+                    getCurrentShaderMatrix(), mColor);
         }
     }
 
-    private void draw(Canvas canvas, GraffitiPath path) {
-        mPaint.setStrokeWidth(path.mStrokeWidth);
-        if (path.mShape == Shape.HAND_WRITE) { // 手写
-            draw(canvas, path.mPen, mPaint, path.getPath(mGraffitiRotateDegree), path.getMatrix(mGraffitiRotateDegree), path.mColor, path.mRotateDegree);
-        } else { // 画图形
-            float[] sxy = path.getSxSy(mGraffitiRotateDegree);
-            float[] dxy = path.getDxDy(mGraffitiRotateDegree);
-            draw(canvas, path.mPen, path.mShape, mPaint,
-                    sxy[0], sxy[1], dxy[0], dxy[1], path.getMatrix(mGraffitiRotateDegree), path.mColor, path.mRotateDegree);
+    // 手指按下后还没有移动
+    private boolean isTapping() {
+        return mTouchDownX == mTouchX && mTouchDownY == mTouchY && mTouchDownX == mLastTouchX && mTouchDownY == mLastTouchY;
+    }
+
+    // 为了仅点击时也能出现绘图，必须移动path
+    private Path getTapPath() {
+        mTempPath.reset();
+        mTempPath.addPath(mCurrPath);
+        mTempPath.quadTo(
+                toX(mLastTouchX),
+                toY(mLastTouchY),
+                toX((mTouchX + mLastTouchX + VALUE) / 2),
+                toY((mTouchY + mLastTouchY + VALUE) / 2));
+        return mTempPath;
+    }
+
+    private Matrix getCurrentShaderMatrix() {
+        return mPen == Pen.ERASER ? mShaderMatrixEraser : mShaderMatrix;
+    }
+
+    /**
+     * 预测的尾部，与手写路径一样用二次贝塞尔曲线连接各点，最后直线连接到最后一个预测点
+     */
+    private Path getPredictionPath() {
+        mPredictPath.rewind();
+        mPredictPath.moveTo(toX((mTouchX + mLastTouchX) / 2), toY((mTouchY + mLastTouchY) / 2));
+        float controlX = mTouchX, controlY = mTouchY;
+        for (int i = 0; i < mPredictCount; i++) {
+            float x = mPredictXy[i * 2], y = mPredictXy[i * 2 + 1];
+            mPredictPath.quadTo(toX(controlX), toY(controlY), toX((x + controlX) / 2), toY((y + controlY) / 2));
+            controlX = x;
+            controlY = y;
         }
+        mPredictPath.lineTo(toX(controlX), toY(controlY));
+        return mPredictPath;
     }
 
-    // 画出文字
-    private void draw(Canvas canvas, GraffitiSelectableItem selectableItem) {
-        canvas.save();
+    /**
+     * 合成涂鸦图层需要的状态：图片和路径记录的快照
+     */
+    private RenderState createLayerState() {
+        RenderState state = new RenderState();
+        state.mBitmap = mBitmap;
+        state.mBitmapEraser = mBitmapEraser;
+        state.mPivotX = mOriginalPivotX;
+        state.mPivotY = mOriginalPivotY;
+        state.mRotateDegree = mGraffitiRotateDegree;
+        state.mEraserMatrix = new Matrix(mShaderMatrixEraser);
+        state.mPaths = mOperationLog.snapshotPaths();
+        return state;
+    }
 
-        float[] xy = selectableItem.getXy(mGraffitiRotateDegree); // 获取旋转图片后文字的起始坐标
-        canvas.translate(xy[0], xy[1]); // 把坐标系平移到文字矩形范围
-        canvas.rotate(mGraffitiRotateDegree - selectableItem.getGraffitiRotate() + selectableItem.getItemRotate(), 0, 0); // 旋转坐标系
-
-        // 在变换后的坐标系中画出文字
-        if (selectableItem == mSelectedItem) {
-            Rect rect = selectableItem.getBounds(mGraffitiRotateDegree);
-            mPaint.setShader(null);
-            // Rect
-            /*if (selectableItem.getColor().getType() == GraffitiColor.Type.COLOR) {
-                mPaint.setColor(Color.argb(126,
-                        255 - Color.red(selectableItem.getColor().getColor()),
-                        255 - Color.green(selectableItem.getColor().getColor()),
-                        255 - Color.blue(selectableItem.getColor().getColor())));
-            } else {*/
-            mPaint.setColor(0x88888888);
-//            }
-            mPaint.setStyle(Paint.Style.FILL);
-            mPaint.setStrokeWidth(1);
-            canvas.drawRect(rect, mPaint);
-            // border
-            if (mIsRotatingSelectedItem) {
-                mPaint.setColor(0x88ffd700);
+    /**
+     * 创建当前这一帧的状态交给绘制线程，正在变化的路径和矩阵都复制一份
+     */
+    private RenderState createRenderState() {
+        RenderState state = createLayerState();
+        state.mView = this;
+        state.mItems = mOperationLog.snapshotItems();
+        state.mSelectedItem = mSelectedItem;
+        state.mIsRotatingSelectedItem = mIsRotatingSelectedItem;
+
+        state.mLeft = mCentreTranX + mTransX;
+        state.mTop = mCentreTranY + mTransY;
+        state.mScale = mPrivateScale * mScale;
+        state.mIsDrawableOutside = mIsDrawableOutside;
+        state.mIsJustDrawOriginal = isJustDrawOriginal;
+        state.mIsDraft = mIsDraft;
+        state.mPaintSize = mPaintSize; // 笔画和仿制定位器的大小
+
+        if (mIsPainting && mStrokeOverlay == null) { // 低延迟模式下正在绘制的笔画画在覆盖层上
+            boolean isTap = isTapping();
+            float span = isTap ? VALUE : 0;
+            state.mIsPainting = true;
+            state.mPen = mPen;
+            state.mShape = mShape;
+            state.mColor = mColor.copy();
+            state.mShaderMatrix = new Matrix(getCurrentShaderMatrix());
+            if (mShape == Shape.HAND_WRITE) {
+                state.mStroke = new Path(isTap ? getTapPath() : mCurrPath);
+                if (mPredictCount > 0 && !isTap) {
+                    state.mPrediction = new Path(getPredictionPath());
+                }
             } else {
-                mPaint.setColor(0x88888888);
+                state.mSx = toX(mTouchDownX);
+                state.mSy = toY(mTouchDownY);
+                state.mDx = toX(mTouchX + span);
+                state.mDy = toY(mTouchY + span);
             }
-            mPaint.setStyle(Paint.Style.STROKE);
-            mPaint.setStrokeWidth(2 * GRAFFITI_PIXEL_UNIT);
-            canvas.drawRect(rect, mPaint);
-            // rotate
-            mPaint.setStyle(Paint.Style.STROKE);
-            mPaint.setStrokeWidth(4 * GRAFFITI_PIXEL_UNIT);
-            canvas.drawLine(rect.right, rect.top + rect.height() / 2,
-                    rect.right + (GraffitiSelectableItem.ITEM_CAN_ROTATE_BOUND - 16) * GRAFFITI_PIXEL_UNIT, rect.top + rect.height() / 2, mPaint);
-            canvas.drawCircle(rect.right + (GraffitiSelectableItem.ITEM_CAN_ROTATE_BOUND - 8) * GRAFFITI_PIXEL_UNIT, rect.top + rect.height() / 2, 8 * GRAFFITI_PIXEL_UNIT, mPaint);
+        }
+
+        if (mPen == Pen.COPY) {
+            state.mIsDrawCopyLocation = true;
+            state.mCopyX = mCopyLocation.getX();
+            state.mCopyY = mCopyLocation.getY();
+            state.mIsCopying = mCopyLocation.isCopying();
+        }
 
+        if (mAmplifierScale > 0) {
+            state.mAmplifierScale = mAmplifierScale;
+            state.mAmplifierRadius = mAmplifierRadius;
+            state.mAmplifierStrokeWidth = mAmplifierPaint.getStrokeWidth();
+            state.mAmplifierLeft = mAmplifierHorizonX;
+            state.mAmplifierTop = mTouchY <= mAmplifierRadius * 2 ? getHeight() - mAmplifierRadius * 2 : 0;
+            state.mTouchX = mTouchX;
+            state.mTouchY = mTouchY;
+            state.mViewScale = mScale;
         }
-        resetPaint(Pen.TEXT, mPaint, null, selectableItem.getColor(), selectableItem.getGraffitiRotate());
+        return state;
+    }
 
-        selectableItem.draw(canvas, this, mPaint);
+    /**
+     * 在导航小地图上绘制缩略图和可见的范围
+     * 缩略图直接使用已合成的原图和图层的最小一级缩小图，尚未合成的路径和元素不绘制。
+     * 使用绘制线程时使用绘制线程发布的图层
+     */
+    void drawNavigator(Canvas canvas, int width, int height) {
+        LayerCompositor.Result result = mRenderSurface != null ? mRenderSurface.getLayerResult() : mLayerResult;
+        if (result == null || result.mMipmap.getBitmap() != mBitmap || mBitmap.isRecycled()) {
+            return;
+        }
+        int bitmapWidth = mBitmap.getWidth(), bitmapHeight = mBitmap.getHeight();
+        mNavigatorViewport.set(toX(0), toY(0), toX(getWidth()), toY(getHeight()));
+        if (mNavigatorViewport.contains(0, 0, bitmapWidth, bitmapHeight)) { // 完整显示时不需要导航
+            return;
+        }
+        if (mNavigatorPaint == null) {
+            mNavigatorPaint = new Paint();
+            mNavigatorPaint.setStyle(Paint.Style.STROKE);
+            mNavigatorPaint.setStrokeWidth(Util.dp2px(getContext(), 1.5f));
+        }
 
+        float scale = Math.min(width / (float) bitmapWidth, height / (float) bitmapHeight);
+        canvas.save();
+        canvas.translate((width - bitmapWidth * scale) / 2, (height - bitmapHeight * scale) / 2);
+        canvas.scale(scale, scale);
+        int level = result.mMipmap.getLevel(mBitmap, scale); // 缩略图很小，总是最小的一级
+        drawBitmap(canvas, result, level);
+        if (!isJustDrawOriginal && result.mRotateDegree == mGraffitiRotateDegree) {
+            if (level > 0) {
+                mNavigatorClip.set(0, 0, bitmapWidth, bitmapHeight);
+                result.mMipmap.drawLayer(canvas, level, mNavigatorClip);
+            } else {
+                result.mLayer.drawTo(canvas, null, null);
+            }
+        }
+        // 图片的边框和可见的范围，线宽不随缩略图缩放
+        canvas.scale(1 / scale, 1 / scale);
+        mNavigatorPaint.setColor(0x80ffffff);
+        canvas.drawRect(0, 0, bitmapWidth * scale, bitmapHeight * scale, mNavigatorPaint);
+        if (mNavigatorViewport.intersect(0, 0, bitmapWidth, bitmapHeight)) {
+            mNavigatorPaint.setColor(0xffff0000);
+            canvas.drawRect(mNavigatorViewport.left * scale, mNavigatorViewport.top * scale,
+                    mNavigatorViewport.right * scale, mNavigatorViewport.bottom * scale, mNavigatorPaint);
+        }
         canvas.restore();
+    }
 
+    /**
+     * 在覆盖层上绘制正在绘制的路径，与View使用相同的坐标变换
+     */
+    void drawStrokeOverlay(Canvas canvas) {
+        if (!mIsPainting || mBitmap.isRecycled() || isJustDrawOriginal) {
+            return;
+        }
+        if ((mPen == Pen.COPY || mPen == Pen.ERASER) && isTooLargeForCanvas(canvas)) {
+            // 覆盖层的绘制方式由applyOverlayLayerType()决定，按保守的尺寸判断时不会出现
+            return;
+        }
+        canvas.save();
+        canvas.translate(mCentreTranX + mTransX, mCentreTranY + mTransY);
+        canvas.scale(mPrivateScale * mScale, mPrivateScale * mScale);
+        if (!mIsDrawableOutside) {
+            canvas.clipRect(0, 0, mBitmap.getWidth(), mBitmap.getHeight());
+        }
+        drawCurrentStroke(canvas);
+        canvas.restore();
+        onInkDrawn();
     }
 
-    private void resetPaint(Pen pen, Paint paint, Matrix matrix, GraffitiColor color, int rotateDegree) {
-        mPaint.setColor(Color.BLACK);
-        switch (pen) { // 设置画笔
-            case HAND:
-            case TEXT:
-                paint.setShader(null);
-                mShaderMatrixColor.reset();
+    /**
+     * 硬件加速的画布能否绘制当前的图片和橡皮擦底图
+     */
+    private boolean isTooLargeForCanvas(Canvas canvas) {
+        if (!canvas.isHardwareAccelerated()) {
+            return false;
+        }
+        int maxWidth = canvas.getMaximumBitmapWidth(), maxHeight = canvas.getMaximumBitmapHeight();
+        mMaxTextureSize = Math.max(mMaxTextureSize, Math.min(maxWidth, maxHeight)); // 之后切换画笔或图片时使用
+        return mBitmap.getWidth() > maxWidth || mBitmap.getHeight() > maxHeight
+                || (mBitmapEraser != null && (mBitmapEraser.getWidth() > maxWidth || mBitmapEraser.getHeight() > maxHeight));
+    }
 
-                if (color.getType() == GraffitiColor.Type.BITMAP) { // 旋转底图
-                    if (mGraffitiRotateDegree != 0) {
-                        float px = mOriginalPivotX, py = mOriginalPivotY;
-                        if (mGraffitiRotateDegree == 90 || mGraffitiRotateDegree == 270) { //　交换中心点的xy坐标
-                            float t = px;
-                            px = py;
-                            py = t;
-                        }
-                        mShaderMatrixColor.postRotate(mGraffitiRotateDegree, px, py);
-                        if (Math.abs(mGraffitiRotateDegree) == 90 || Math.abs(mGraffitiRotateDegree) == 270) {
-                            mShaderMatrixColor.postTranslate((py - px), -(py - px));
-                        }
-                    }
-                }
+    private void applyRenderMode() {
+        if (Build.VERSION.SDK_INT < 11) {
+            return;
+        }
+        if (mRenderMode == RenderMode.HARDWARE && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                && !mIsHardwareUnsupported) {
+            // 涂鸦仍然在图块的Canvas中软件绘制，View本身直接使用硬件加速的显示列表，无需额外的离屏缓冲
+            setLayerType(LAYER_TYPE_NONE, null);
+        } else {
+            setLayerType(LAYER_TYPE_SOFTWARE, null);
+        }
+        applyOverlayLayerType();
+    }
 
-                color.initColor(paint, mShaderMatrixColor);
-                break;
-            case COPY:
-                // 调整copy图片位置
-                mBitmapShader.setLocalMatrix(matrix);
-                paint.setShader(this.mBitmapShader);
-                break;
-            case ERASER:
-                mBitmapShaderEraser.setLocalMatrix(matrix);
-                if (mBitmapShader != mBitmapShaderEraser) {
-                    mBitmapShaderEraser.setLocalMatrix(mShaderMatrixEraser);
-                }
-                paint.setShader(this.mBitmapShaderEraser);
-                break;
+    /**
+     * 覆盖层保持硬件加速，只有仿制和橡皮擦以超出纹理最大尺寸的图片作为着色器时使用软件绘制
+     * 画笔、图片或覆盖层改变时调用
+     */
+    private void applyOverlayLayerType() {
+        if (Build.VERSION.SDK_INT < 11 || mStrokeOverlay == null || mBitmap == null) {
+            return;
+        }
+        boolean software = false;
+        if (mPen == Pen.COPY || mPen == Pen.ERASER) {
+            software = Math.max(mBitmap.getWidth(), mBitmap.getHeight()) > mMaxTextureSize
+                    || (mBitmapEraser != null && Math.max(mBitmapEraser.getWidth(), mBitmapEraser.getHeight()) > mMaxTextureSize);
+        }
+        int layerType = software ? LAYER_TYPE_SOFTWARE : LAYER_TYPE_NONE;
+        if (mStrokeOverlay.getLayerType() != layerType) {
+            mStrokeOverlay.setLayerType(layerType, null);
+        }
+    }
+
+    // 记录最早一个尚未绘制的触摸点到现在的耗时
+    private void onInkDrawn() {
+        if (mInkEventTime == 0) {
+            return;
         }
+        mInkLatencySum += SystemClock.uptimeMillis() - mInkEventTime;
+        mInkLatencyCount++;
+        mInkEventTime = 0;
     }
 
+    /**
+     * 在后台线程中使涂鸦图层与路径记录一致，合成完成前新增的路径直接绘制在View上
+     * 使用绘制线程时由绘制线程维护自己的图层，这里不再合成
+     */
+    private void compositeLayer() {
+        if (mRenderSurface == null) {
+            mCompositor.submit(createLayerState());
+        }
+    }
+
+    /**
+     * 等待涂鸦图层与路径记录一致，在需要准确的图层时调用
+     */
+    private TiledLayer flushLayer() {
+        mCompositor.submit(createLayerState());
+        mLayerResult = mCompositor.flush();
+        return mLayerResult.mLayer;
+    }
+
+    /**
+     * 绘制已合成的涂鸦图层，画布已变换到图片坐标系
+     *
+     * @param level 绘制图层的第几级缩小图，0表示图层本身
+     * @return 图层中已包含paths中的前几个路径，之后的路径尚未合成。撤销的路径在合成完成前仍留在图层中
+     */
+    private int drawLayer(Canvas canvas, LayerCompositor.Result result, int level, OperationLog.Snapshot<GraffitiPath> paths) {
+        if (result == null || result.mRotateDegree != mGraffitiRotateDegree) { // 旋转后的图层尚未合成
+            return 0;
+        }
+        if (level > 0) {
+            result.mMipmap.drawLayer(canvas, level, mLayerClip);
+        } else {
+            result.mLayer.drawTo(canvas, mLayerClip, null);
+        }
+        return paths.commonPrefix(result.mPaths);
+    }
+
+    // 画出文字
+    private void drawItem(Canvas canvas, GraffitiSelectableItem selectableItem, float scale) {
+        mRenderer.drawItem(canvas, this, selectableItem, selectableItem == mSelectedItem, mIsRotatingSelectedItem, scale);
+    }
 
     /**
      * 将屏幕触摸坐标x转换成在图片中的坐标
@@ -766,36 +1430,49 @@ public class GraffitiView extends View {
         return -graffitiY * (mPrivateScale * mScale) + touchY - mCentreTranY;
     }
 
+    /**
+     * 涂鸦路径的副本，修改副本不会影响涂鸦
+     *
+     * @deprecated 路径不再保存在CopyOnWriteArrayList中，每次调用都会复制全部路径
+     */
+    @Deprecated
     public CopyOnWriteArrayList<GraffitiPath> getPathStack() {
-        return mPathStack;
+        return new CopyOnWriteArrayList<>(mOperationLog.snapshotPaths().toList());
     }
 
+    /**
+     * 可选择元素的副本，修改副本不会影响涂鸦
+     *
+     * @deprecated 元素不再保存在CopyOnWriteArrayList中，每次调用都会复制全部元素
+     */
+    @Deprecated
     public CopyOnWriteArrayList<GraffitiSelectableItem> getSelectedItemStack() {
-        return mSelectableStack;
+        return new CopyOnWriteArrayList<>(mOperationLog.snapshotItems().toList());
     }
 
     public final void addPath(GraffitiPath path) {
-        mPathStack.add(path);
-        mUndoStack.add(path);
-        draw(mBitmapCanvas, path); // 保存到图片中
+        mOperationLog.addPath(path);
+        compositeLayer(); // 在后台线程中保存到图层中
     }
 
     public final void removePath(GraffitiPath path) {
-        mPathStack.remove(path);
-        mUndoStack.remove(path);
-        initCanvas();
-        draw(mBitmapCanvas, mPathStack);
-        invalidate();
+        int index = mOperationLog.removePath(path);
+        if (index < 0) {
+            return;
+        }
+        compositeLayer();
+        markDirty(null);
     }
 
     public final void addSelectableItem(GraffitiSelectableItem item) {
-        mSelectableStack.add(item);
-        mUndoStack.add((Undoable) item);
+        mOperationLog.addItem(item);
+        mItemIndex.add(item);
     }
 
     public final void removeSelectableItem(GraffitiSelectableItem item) {
-        mSelectableStack.remove(item);
-        mUndoStack.remove(item);
+        mOperationLog.removeItem(item);
+        mItemIndex.remove(item);
+        mRenderer.releaseItem(item);
     }
 
     /**
@@ -803,17 +1480,10 @@ public class GraffitiView extends View {
      * @param item
      */
     public final void  topSelectableItem(GraffitiSelectableItem item) {
-        removeSelectableItem(item);
-        mSelectableStack.add(item);
-        mUndoStack.add(item);
-    }
-
-    private void initCanvas() {
-        if (mGraffitiBitmap != null) {
-            mGraffitiBitmap.recycle();
+        if (mOperationLog.removeItem(item)) {
+            mOperationLog.addItem(item);
+            mItemIndex.add(item);
         }
-        mGraffitiBitmap = mBitmap.copy(Bitmap.Config.RGB_565, true);
-        mBitmapCanvas = new Canvas(mGraffitiBitmap);
     }
 
     private void resetMatrix() {
@@ -827,7 +1497,7 @@ public class GraffitiView extends View {
         mShaderMatrixEraser.set(mShaderMatrix);
 
         // 如果使用了自定义的橡皮擦底图，则需要调整矩阵
-        if (mPen == Pen.ERASER && mBitmapShader != mBitmapShaderEraser) {
+        if (mPen == Pen.ERASER && mBitmapEraser != null) {
             // 缩放橡皮擦底图，使之与涂鸦图片大小一样
             if (mEraserImageIsResizeable) {
                 mShaderMatrixEraser.preScale(mBitmap.getWidth() * 1f / mBitmapEraser.getWidth(), mBitmap.getHeight() * 1f / mBitmapEraser.getHeight());
@@ -841,6 +1511,7 @@ public class GraffitiView extends View {
                 }
             }
         }
+        mRenderer.setEraserMatrix(mShaderMatrixEraser);
     }
 
     /**
@@ -911,39 +1582,49 @@ public class GraffitiView extends View {
 
         mSelectedItem = null;
 
-        // 保存的时候，把文字画上去
-        for (GraffitiSelectableItem item : mSelectableStack) {
-            draw(mBitmapCanvas, item);
+        // 保存的时候，把原图、涂鸦图层和文字合成一张图片
+        Bitmap bitmap = mBitmap.copy(Bitmap.Config.RGB_565, true);
+        Canvas canvas = new Canvas(bitmap);
+        flushLayer().drawTo(canvas, null, null);
+        if (mRenderSurface != null) { // 绘制线程有自己的图层，保存用的图层不再保留
+            mCompositor.release();
+            mLayerResult = null;
         }
-        mGraffitiListener.onSaved(mGraffitiBitmap, mBitmapEraser);
+        for (GraffitiSelectableItem item : mOperationLog.snapshotItems()) {
+            drawItem(canvas, item, 0); // 保存时直接绘制，保证清晰
+        }
+        mGraffitiListener.onSaved(bitmap, mBitmapEraser);
     }
 
     /**
      * 清屏
      */
     public void clear() {
-        mPathStack.clear();
-        mSelectableStack.clear();
-        mUndoStack.clear();
-        initCanvas();
-        invalidate();
+        mOperationLog.clear();
+        mItemIndex.clear();
+        mRenderer.releaseItems();
+        compositeLayer();
+        markDirty(null);
     }
 
     /**
      * 撤销
      */
     public void undo() {
-        if (mUndoStack.size() > 0) {
-            Undoable undoable = mUndoStack.remove(mUndoStack.size() - 1);
-            mPathStack.remove(undoable);
-            mSelectableStack.remove(undoable);
+        Undoable undoable = mOperationLog.undo();
+        if (undoable != null) {
+            if (undoable instanceof GraffitiPath) {
+                // 只有撤销路径时才需要更新图层
+                compositeLayer();
+            } else {
+                mItemIndex.remove((GraffitiSelectableItem) undoable);
+                mRenderer.releaseItem((GraffitiSelectableItem) undoable);
+            }
             if (undoable == mSelectedItem) {
                 mSelectedItem = null;
             }
 
-            initCanvas();
-            draw(mBitmapCanvas, mPathStack);
-            invalidate();
+            markDirty(null);
         }
     }
 
@@ -951,7 +1632,7 @@ public class GraffitiView extends View {
      * 是否有修改
      */
     public boolean isModified() {
-        return mUndoStack.size() != 0 || mGraffitiRotateDegree != 0;
+        return mOperationLog.size() != 0 || mGraffitiRotateDegree != 0;
     }
 
     /**
@@ -963,7 +1644,7 @@ public class GraffitiView extends View {
         mTransX = 0;
         mTransY = 0;
         judgePosition();
-        invalidate();
+        markDirty(null);
     }
 
     /**
@@ -973,7 +1654,7 @@ public class GraffitiView extends View {
      */
     public void setJustDrawOriginal(boolean justDrawOriginal) {
         isJustDrawOriginal = justDrawOriginal;
-        invalidate();
+        markDirty(null);
     }
 
     public boolean isJustDrawOriginal() {
@@ -987,7 +1668,7 @@ public class GraffitiView extends View {
      */
     public void setColor(int color) {
         mColor.setColor(color);
-        invalidate();
+        markDirty(null);
     }
 
     public void setColor(Bitmap bitmap) {
@@ -995,7 +1676,7 @@ public class GraffitiView extends View {
             return;
         }
         mColor.setColor(bitmap);
-        invalidate();
+        markDirty(null);
     }
 
     public GraffitiColor getColor() {
@@ -1007,7 +1688,7 @@ public class GraffitiView extends View {
             return;
         }
         mColor.setColor(bitmap, tileX, tileY);
-        invalidate();
+        markDirty(null);
     }
 
     public GraffitiColor getGraffitiColor() {
@@ -1033,7 +1714,7 @@ public class GraffitiView extends View {
 
         judgePosition();
         resetMatrix();
-        invalidate();
+        markDirty(null);
     }
 
     /**
@@ -1060,6 +1741,7 @@ public class GraffitiView extends View {
         Pen old = mPen;
         mPen = pen;
         resetMatrix();
+        applyOverlayLayerType();
 
         if (!isPenSelectable() || old != mPen) {
             if (mSelectedItem != null) {
@@ -1069,7 +1751,7 @@ public class GraffitiView extends View {
             }
         }
 
-        invalidate();
+        markDirty(null);
     }
 
     public Pen getPen() {
@@ -1086,7 +1768,7 @@ public class GraffitiView extends View {
             throw new RuntimeException("Shape can't be null");
         }
         mShape = shape;
-        invalidate();
+        markDirty(null);
     }
 
     public Shape getShape() {
@@ -1098,7 +1780,7 @@ public class GraffitiView extends View {
         mTransY = transY;
         judgePosition();
         resetMatrix();
-        invalidate();
+        markDirty(null);
     }
 
     /**
@@ -1109,7 +1791,7 @@ public class GraffitiView extends View {
     public void setTransX(float transX) {
         this.mTransX = transX;
         judgePosition();
-        invalidate();
+        markDirty(null);
     }
 
     public float getTransX() {
@@ -1119,7 +1801,7 @@ public class GraffitiView extends View {
     public void setTransY(float transY) {
         this.mTransY = transY;
         judgePosition();
-        invalidate();
+        markDirty(null);
     }
 
     public float getTransY() {
@@ -1129,7 +1811,7 @@ public class GraffitiView extends View {
 
     public void setPaintSize(float paintSize) {
         mPaintSize = paintSize;
-        invalidate();
+        markDirty(null);
     }
 
     public float getPaintSize() {
@@ -1159,13 +1841,279 @@ public class GraffitiView extends View {
      */
     public void setAmplifierScale(float amplifierScale) {
         mAmplifierScale = amplifierScale;
-        invalidate();
+        markDirty(null);
     }
 
     public float getAmplifierScale() {
         return mAmplifierScale;
     }
 
+    /**
+     * 设置撤销时使用的图层快照间隔，即每隔多少个路径保存一次快照
+     * 撤销时从最近的快照恢复，最多只需重绘interval个路径。小于等于0时不保存快照，撤销时重绘全部路径
+     *
+     * @param interval
+     */
+    public void setCheckpointInterval(int interval) {
+        mCompositor.setCheckpointInterval(interval);
+        if (mRenderSurface != null) {
+            mRenderSurface.setCheckpointInterval(interval);
+        }
+    }
+
+    public int getCheckpointInterval() {
+        return mCompositor.getCheckpointInterval();
+    }
+
+    /**
+     * 设置撤销用的图层快照可占用的最大内存（byte），超出时丢弃最旧的快照
+     * 默认为最大可用内存的1/8
+     *
+     * @param memoryBudget
+     */
+    public void setUndoMemoryBudget(long memoryBudget) {
+        mCompositor.setUndoMemoryBudget(memoryBudget);
+        if (mRenderSurface != null) {
+            mRenderSurface.setUndoMemoryBudget(memoryBudget);
+        }
+    }
+
+    public long getUndoMemoryBudget() {
+        return mCompositor.getUndoMemoryBudget();
+    }
+
+    /**
+     * 设置撤销方式，切换时会丢弃之前保存的快照
+     *
+     * @param undoMode
+     */
+    public void setUndoMode(UndoMode undoMode) {
+        if (undoMode == null) {
+            throw new RuntimeException("UndoMode can't be null");
+        }
+        if (undoMode == mCompositor.getUndoMode()) {
+            return;
+        }
+        mCompositor.setUndoMode(undoMode);
+        if (mRenderSurface != null) {
+            mRenderSurface.setUndoMode(undoMode);
+        }
+    }
+
+    public UndoMode getUndoMode() {
+        return mCompositor.getUndoMode();
+    }
+
+    /**
+     * 当前撤销方式保存的快照占用的内存（byte），为后台线程最近一次合成图层后的值，使用绘制线程时为绘制线程的值
+     */
+    public long getUndoMemorySize() {
+        if (mRenderSurface != null) {
+            return mRenderSurface.getUndoMemorySize();
+        }
+        return mCompositor.getUndoMemorySize();
+    }
+
+    /**
+     * 平均每个路径的撤销操作占用的内存（byte），用于比较不同撤销方式的内存开销
+     */
+    public long getUndoMemorySizePerPath() {
+        if (mOperationLog.getPathCount() == 0) {
+            return 0;
+        }
+        return getUndoMemorySize() / mOperationLog.getPathCount();
+    }
+
+    /**
+     * 设置绘制方式，默认为{@link RenderMode#SOFTWARE}
+     * 硬件加速需要窗口开启硬件加速，API 18以下或者图片超出纹理的最大尺寸时仍使用软件绘制
+     *
+     * @param renderMode
+     */
+    public void setRenderMode(RenderMode renderMode) {
+        if (renderMode == null) {
+            throw new RuntimeException("RenderMode can't be null");
+        }
+        if (renderMode == mRenderMode) {
+            return;
+        }
+        mRenderMode = renderMode;
+        applyRenderMode();
+        markDirty(null);
+    }
+
+    public RenderMode getRenderMode() {
+        return mRenderMode;
+    }
+
+    /**
+     * 当前是否实际使用硬件加速绘制
+     */
+    public boolean isRenderingHardware() {
+        return getLayerType() != LAYER_TYPE_SOFTWARE && isHardwareAccelerated();
+    }
+
+    /**
+     * 绘制时是否根据最近的速度和加速度预测笔画的走向，在笔画末尾临时绘制约一帧的尾部，减少感觉到的延迟
+     * 预测的尾部在真实的触摸点到达后被替换，不会保存到涂鸦中。默认为true
+     *
+     * @param strokePrediction
+     */
+    public void setStrokePrediction(boolean strokePrediction) {
+        mIsStrokePrediction = strokePrediction;
+        if (!strokePrediction) {
+            mPredictCount = 0;
+        }
+        markDirty(null);
+    }
+
+    public boolean isStrokePrediction() {
+        return mIsStrokePrediction;
+    }
+
+    /**
+     * 设置草稿画质的策略。手指按下、手势或持续缩放期间不做抗锯齿和图片过滤，放大器以一半的分辨率绘制，
+     * 输入停止超过delay(ms)后以完整画质重新绘制一帧。小于等于0时始终以完整画质绘制，默认为0
+     *
+     * @param delay
+     */
+    public void setDraftRefineDelay(long delay) {
+        mDraftRefineDelay = delay;
+        if (delay <= 0 && mIsDraft) {
+            removeCallbacks(mRefine);
+            mRefine.run();
+        }
+    }
+
+    public long getDraftRefineDelay() {
+        return mDraftRefineDelay;
+    }
+
+    /**
+     * 设置低延迟模式的覆盖层，为null时关闭低延迟模式
+     * 覆盖层需要添加到GraffitiView之上，位置和大小与GraffitiView相同。开启后正在绘制的笔画只在覆盖层上绘制，
+     * 触摸点不再等待屏幕刷新而立即分发（API 21以上），手指抬起后笔画合并到涂鸦图层中
+     *
+     * @param overlay
+     */
+    public void setStrokeOverlay(StrokeOverlayView overlay) {
+        if (mStrokeOverlay == overlay) {
+            return;
+        }
+        if (mStrokeOverlay != null) {
+            mStrokeOverlay.setGraffitiView(null);
+        }
+        mStrokeOverlay = overlay;
+        mIsPendingOverlayClear = false;
+        if (mStrokeOverlay != null) {
+            mStrokeOverlay.setGraffitiView(this);
+            applyOverlayLayerType();
+        }
+        markDirty(null);
+    }
+
+    public StrokeOverlayView getStrokeOverlay() {
+        return mStrokeOverlay;
+    }
+
+    /**
+     * 设置导航小地图，为null时不显示
+     * 小地图可以添加到GraffitiView之上的任意位置，放大后显示整张图片的缩略图和当前可见的范围
+     *
+     * @param navigator
+     */
+    public void setNavigator(NavigatorView navigator) {
+        if (mNavigator == navigator) {
+            return;
+        }
+        if (mNavigator != null) {
+            mNavigator.setGraffitiView(null);
+        }
+        mNavigator = navigator;
+        if (mNavigator != null) {
+            mNavigator.setGraffitiView(this);
+        }
+    }
+
+    public NavigatorView getNavigator() {
+        return mNavigator;
+    }
+
+    /**
+     * 绘制线程发布了新的图层，在主线程中调用
+     */
+    void onRenderLayerPublished() {
+        if (mNavigator != null) {
+            mNavigator.invalidate();
+        }
+    }
+
+    /**
+     * 设置在单独线程中绘制的显示目标，为null时恢复在View中绘制
+     * 显示目标需要添加到GraffitiView之下，位置和大小与GraffitiView相同。设置后GraffitiView只处理触摸和状态，
+     * 每一帧把状态的快照交给绘制线程，路径的绘制和撤销时的重绘都不再占用主线程
+     *
+     * @param surface
+     */
+    public void setRenderSurface(GraffitiSurfaceView surface) {
+        if (mRenderSurface == surface) {
+            return;
+        }
+        if (mRenderSurface != null) {
+            mRenderSurface.setGraffitiView(null);
+        }
+        mRenderSurface = surface;
+        if (mRenderSurface == null) { // 绘制线程期间没有合成图层
+            compositeLayer();
+        } else { // 绘制线程使用相同的撤销设置
+            mRenderSurface.setGraffitiView(this);
+            mRenderSurface.setUndoMode(mCompositor.getUndoMode());
+            mRenderSurface.setCheckpointInterval(mCompositor.getCheckpointInterval());
+            mRenderSurface.setUndoMemoryBudget(mCompositor.getUndoMemoryBudget());
+        }
+        invalidate();
+        markDirty(null);
+    }
+
+    public GraffitiSurfaceView getRenderSurface() {
+        return mRenderSurface;
+    }
+
+    /**
+     * 是否开启了低延迟模式
+     */
+    public boolean isLowLatency() {
+        return mStrokeOverlay != null;
+    }
+
+    /**
+     * 绘制时触摸点从产生到被绘制出来的平均耗时（毫秒），用于比较默认模式与低延迟模式
+     * 每次绘制时按最早一个尚未绘制的触摸点计算，使用绘制线程时在画面提交显示后计算，没有数据时返回0
+     */
+    public float getTouchToInkLatency() {
+        long sum = mInkLatencySum;
+        int count = mInkLatencyCount;
+        if (mRenderSurface != null) {
+            sum += mRenderSurface.getInkLatencySum();
+            count += mRenderSurface.getInkLatencyCount();
+        }
+        if (count == 0) {
+            return 0;
+        }
+        return sum * 1f / count;
+    }
+
+    /**
+     * 清空统计的触摸延迟
+     */
+    public void resetTouchToInkLatency() {
+        mInkLatencySum = 0;
+        mInkLatencyCount = 0;
+        if (mRenderSurface != null) {
+            mRenderSurface.resetInkLatency();
+        }
+    }
+
     /**
      * 图片在适应屏幕时的尺寸
      */
@@ -1192,15 +2140,17 @@ public class GraffitiView extends View {
             throw new NullPointerException("Selected item is null!");
         }
         mSelectedItem.setSize(selectedTextSize);
-        invalidate();
+        markDirty(null);
     }
 
     public void setSelectedItemColor(int color) {
         if (mSelectedItem == null) {
             throw new NullPointerException("Selected item is null!");
         }
-        mSelectedItem.getColor().setColor(color);
-        invalidate();
+        synchronized (mSelectedItem) { // 绘制线程可能正在绘制该元素
+            mSelectedItem.getColor().setColor(color);
+        }
+        markDirty(null);
     }
 
     public void setSelectedItemColor(Bitmap bitmap) {
@@ -1210,8 +2160,10 @@ public class GraffitiView extends View {
         if (mBitmap == null) {
             return;
         }
-        mSelectedItem.getColor().setColor(bitmap);
-        invalidate();
+        synchronized (mSelectedItem) {
+            mSelectedItem.getColor().setColor(bitmap);
+        }
+        markDirty(null);
     }
 
     public GraffitiColor getSelectedItemColor() {
@@ -1237,7 +2189,7 @@ public class GraffitiView extends View {
         GraffitiSelectableItem oldItem = mSelectedItem;
         mSelectedItem = null;
         mGraffitiListener.onSelectedItem(oldItem, false);
-        invalidate();
+        markDirty(null);
     }
 
     public void topSelectedItem() {
@@ -1245,7 +2197,7 @@ public class GraffitiView extends View {
             throw new NullPointerException("Selected item is null!");
         }
         topSelectableItem(mSelectedItem);
-        invalidate();
+        markDirty(null);
     }
 
     public float getOriginalPivotX() {
@@ -0,0 +1,132 @@
+package cn.hzw.graffiti;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.graphics.Shader;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 可选择元素的绘制缓存
+ * 每个元素按当前缩放所在的档位（2的整数次幂）绘制一次到图片中，之后每一帧只需按元素的位置和角度绘制这张图片，
+ * 开销与文字的字数无关。元素的内容、大小、颜色、涂鸦的旋转角度或缩放档位改变时重新绘制。
+ * 缓存占用的内存不超过预算，超出时丢弃最久未使用的元素。只能在同一个线程中使用。
+ */
+class ItemCache {
+
+    static final int MAX_SIZE = 2048; // 缓存图片的最大边长，超出时直接绘制元素
+    private static final float MIN_SCALE = 1 / 16f, MAX_SCALE = 16;
+
+    static class Entry {
+        final Bitmap mBitmap;
+        final float mScale; // 缩放档位
+        private final int mRotateDegree;
+        private final int mContentVersion;
+        private final Rect mBounds;
+        // 颜色可能被直接修改，记录绘制时的颜色
+        private final GraffitiColor.Type mColorType;
+        private final int mColor;
+        private final Bitmap mColorBitmap;
+        private final Shader.TileMode mTileX, mTileY;
+
+        Entry(Bitmap bitmap, float scale, int rotateDegree, GraffitiSelectableItem item, Rect bounds) {
+            mBitmap = bitmap;
+            mScale = scale;
+            mRotateDegree = rotateDegree;
+            mContentVersion = item.getContentVersion();
+            mBounds = new Rect(bounds);
+            GraffitiColor color = item.getColor();
+            mColorType = color.getType();
+            mColor = color.getColor();
+            mColorBitmap = color.getBitmap();
+            mTileX = color.getTileX();
+            mTileY = color.getTileY();
+        }
+
+        boolean matches(GraffitiSelectableItem item, float scale, int rotateDegree, Rect bounds) {
+            GraffitiColor color = item.getColor();
+            return mScale == scale && mRotateDegree == rotateDegree && mContentVersion == item.getContentVersion()
+                    && mBounds.equals(bounds) && mColorType == color.getType() && mColor == color.getColor()
+                    && mColorBitmap == color.getBitmap() && mTileX == color.getTileX() && mTileY == color.getTileY();
+        }
+
+        long getMemorySize() {
+            return (long) mBitmap.getRowBytes() * mBitmap.getHeight();
+        }
+    }
+
+    private final LinkedHashMap<GraffitiSelectableItem, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long mMemoryBudget;
+    private long mMemorySize;
+    private final HashSet<GraffitiSelectableItem> mRetained = new HashSet<>(); // retain()中临时使用
+
+    ItemCache(long memoryBudget) {
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * 缩放倍数所在的档位，不小于该倍数，缓存的图片只会缩小绘制
+     */
+    static float getScaleBucket(float scale) {
+        float bucket = (float) Math.pow(2, Math.ceil(Math.log(scale) / Math.log(2)));
+        return Math.max(MIN_SCALE, Math.min(MAX_SCALE, bucket));
+    }
+
+    Entry get(GraffitiSelectableItem item) {
+        return mEntries.get(item);
+    }
+
+    void put(GraffitiSelectableItem item, Entry entry) {
+        remove(item);
+        // 先释放最久未使用的缓存，为新的缓存腾出预算
+        Iterator<Map.Entry<GraffitiSelectableItem, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mMemorySize + entry.getMemorySize() > mMemoryBudget && iterator.hasNext()) {
+            Entry eldest = iterator.next().getValue();
+            iterator.remove();
+            release(eldest);
+        }
+        mEntries.put(item, entry);
+        mMemorySize += entry.getMemorySize();
+    }
+
+    void remove(GraffitiSelectableItem item) {
+        Entry entry = mEntries.remove(item);
+        if (entry != null) {
+            release(entry);
+        }
+    }
+
+    /**
+     * 只保留items中的元素的缓存，用于无法逐个得知元素被移除的场合
+     */
+    void retain(OperationLog.Snapshot<GraffitiSelectableItem> items) {
+        if (mEntries.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < items.size(); i++) {
+            mRetained.add(items.get(i));
+        }
+        Iterator<Map.Entry<GraffitiSelectableItem, Entry>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<GraffitiSelectableItem, Entry> entry = iterator.next();
+            if (!mRetained.contains(entry.getKey())) {
+                iterator.remove();
+                release(entry.getValue());
+            }
+        }
+        mRetained.clear();
+    }
+
+    void clear() {
+        mEntries.clear();
+        mMemorySize = 0;
+    }
+
+    // 不回收图片，硬件加速时本帧的显示列表可能已经引用了它，由GC回收
+    private void release(Entry entry) {
+        mMemorySize -= entry.getMemorySize();
+    }
+}
@@ -0,0 +1,352 @@
+package cn.hzw.graffiti;
+
+import android.graphics.Matrix;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * 可选择元素的空间索引
+ * 把元素旋转后的外接矩形（当前涂鸦坐标系）登记到均匀网格中，点击时只需检查触摸点所在网格内的元素。
+ * 元素的位置、角度或大小改变时增量更新，并按加入的先后记录层级，点击时返回最上层的元素。
+ */
+class ItemSpatialIndex {
+
+    static final int CELL_SIZE = 256;
+    private static final float SIN_1_DEGREE = (float) Math.sin(Math.toRadians(1));
+
+    private static class Entry {
+        final GraffitiSelectableItem mItem;
+        final long mOrder; // 越大越靠上
+        final RectF mBounds = new RectF();
+        int mLeft, mTop, mRight, mBottom; // 占据的网格范围
+        int mQueryStamp; // 最近一次被查询到的编号，用于去除跨多个网格的重复元素
+
+        Entry(GraffitiSelectableItem item, long order) {
+            mItem = item;
+            mOrder = order;
+        }
+    }
+
+    /**
+     * 以网格坐标为键的开放寻址哈希表，键不装箱
+     * 网格只增不删，变空的网格留在表中，元素再次进入时直接复用，拖动元素跨越网格时不分配内存
+     */
+    private static class CellMap {
+        private long[] mKeys = new long[64];
+        private Object[] mCells = new Object[64]; // 为null表示空位
+        private int mSize;
+
+        @SuppressWarnings("unchecked")
+        ArrayList<Entry> get(long key) {
+            int mask = mKeys.length - 1;
+            for (int i = hash(key) & mask; mCells[i] != null; i = (i + 1) & mask) {
+                if (mKeys[i] == key) {
+                    return (ArrayList<Entry>) mCells[i];
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 获取网格，不存在时创建
+         */
+        ArrayList<Entry> obtain(long key) {
+            ArrayList<Entry> cell = get(key);
+            if (cell != null) {
+                return cell;
+            }
+            if ((mSize + 1) * 2 > mKeys.length) { // 保持一半以上的空位
+                grow();
+            }
+            cell = new ArrayList<>(4);
+            put(key, cell);
+            mSize++;
+            return cell;
+        }
+
+        /**
+         * 清空全部网格，保留网格本身
+         */
+        @SuppressWarnings("unchecked")
+        void clearCells() {
+            for (Object cell : mCells) {
+                if (cell != null) {
+                    ((ArrayList<Entry>) cell).clear();
+                }
+            }
+        }
+
+        private void put(long key, Object cell) {
+            int mask = mKeys.length - 1;
+            int i = hash(key) & mask;
+            while (mCells[i] != null) {
+                i = (i + 1) & mask;
+            }
+            mKeys[i] = key;
+            mCells[i] = cell;
+        }
+
+        private void grow() {
+            long[] keys = mKeys;
+            Object[] cells = mCells;
+            mKeys = new long[keys.length * 2];
+            mCells = new Object[cells.length * 2];
+            for (int i = 0; i < keys.length; i++) {
+                if (cells[i] != null) {
+                    put(keys[i], cells[i]);
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+
+    private static final Comparator<Entry> ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            return lhs.mOrder < rhs.mOrder ? -1 : (lhs.mOrder == rhs.mOrder ? 0 : 1);
+        }
+    };
+
+    private final CellMap mCells = new CellMap();
+    private final HashMap<GraffitiSelectableItem, Entry> mEntries = new HashMap<>();
+    private final Matrix mMatrix = new Matrix();
+    private final float[] mTempXy = new float[2];
+    private int mRotateDegree; // 当前涂鸦的旋转角度
+    private long mOrder;
+    private int mQueryStamp;
+    private final ArrayList<Entry> mQueryEntries = new ArrayList<>();
+    private final RectF mIndexedBounds = new RectF(); // 全部元素的范围
+    private boolean mIsIndexedBoundsDirty; // 有元素移出后需要重新计算
+    private final RectF mTempRect = new RectF();
+
+    /**
+     * 加入元素，位于所有元素之上
+     */
+    void add(GraffitiSelectableItem item) {
+        remove(item);
+        Entry entry = new Entry(item, mOrder++);
+        mEntries.put(item, entry);
+        item.setSpatialIndex(this);
+        computeBounds(entry);
+        insert(entry);
+    }
+
+    void remove(GraffitiSelectableItem item) {
+        Entry entry = mEntries.remove(item);
+        if (entry == null) {
+            return;
+        }
+        item.setSpatialIndex(null);
+        erase(entry, entry.mLeft, entry.mTop, entry.mRight, entry.mBottom);
+    }
+
+    /**
+     * 元素的位置、角度或大小改变后调用
+     */
+    void update(GraffitiSelectableItem item) {
+        Entry entry = mEntries.get(item);
+        if (entry == null) {
+            return;
+        }
+        int left = entry.mLeft, top = entry.mTop, right = entry.mRight, bottom = entry.mBottom;
+        computeBounds(entry);
+        // 拖动时大多数情况下仍在原来的网格内，无需改动网格
+        if (left == entry.mLeft && top == entry.mTop && right == entry.mRight && bottom == entry.mBottom) {
+            return;
+        }
+        erase(entry, left, top, right, bottom);
+        insert(entry);
+    }
+
+    void clear() {
+        for (GraffitiSelectableItem item : mEntries.keySet()) {
+            item.setSpatialIndex(null);
+        }
+        mEntries.clear();
+        mCells.clearCells();
+        mIndexedBounds.setEmpty();
+        mIsIndexedBoundsDirty = false;
+        mOrder = 0;
+    }
+
+    /**
+     * 涂鸦旋转后，所有元素在涂鸦坐标系中的范围都改变了，重新登记
+     */
+    void setRotateDegree(int degree) {
+        if (mRotateDegree == degree) {
+            return;
+        }
+        mRotateDegree = degree;
+        mCells.clearCells();
+        mIndexedBounds.setEmpty();
+        mIsIndexedBoundsDirty = false;
+        for (Entry entry : mEntries.values()) {
+            computeBounds(entry);
+            insert(entry);
+        }
+    }
+
+    /**
+     * 查找点(x,y)处最上层的元素
+     *
+     * @param x   当前涂鸦坐标系中的点
+     * @param y
+     * @param pen 只查找该画笔的元素
+     * @return 没有击中时返回null
+     */
+    GraffitiSelectableItem hitTest(float x, float y, GraffitiView.Pen pen) {
+        ArrayList<Entry> cell = mCells.get(key(cell(x), cell(y)));
+        if (cell == null) {
+            return null;
+        }
+        Entry hit = null;
+        for (int i = 0; i < cell.size(); i++) {
+            Entry entry = cell.get(i);
+            if (hit != null && entry.mOrder < hit.mOrder) {
+                continue;
+            }
+            if (!entry.mBounds.contains(x, y)) {
+                continue;
+            }
+            if (entry.mItem.isInIt(mRotateDegree, x, y, pen)) {
+                hit = entry;
+            }
+        }
+        return hit == null ? null : hit.mItem;
+    }
+
+    /**
+     * rect是否覆盖了大部分元素所在的范围，此时逐个检查全部元素比按网格查找更快
+     *
+     * @param rect 当前涂鸦坐标系中的范围
+     */
+    boolean coversMost(RectF rect) {
+        if (mIsIndexedBoundsDirty) {
+            mIndexedBounds.setEmpty();
+            for (Entry entry : mEntries.values()) {
+                mIndexedBounds.union(entry.mBounds);
+            }
+            mIsIndexedBoundsDirty = false;
+        }
+        if (mIndexedBounds.isEmpty() || !mTempRect.setIntersect(mIndexedBounds, rect)) {
+            return false;
+        }
+        return mTempRect.width() * mTempRect.height() >= mIndexedBounds.width() * mIndexedBounds.height() * 3 / 4;
+    }
+
+    /**
+     * 元素的范围是否与rect相交，元素不在索引中时返回false
+     *
+     * @param rect 当前涂鸦坐标系中的范围
+     */
+    boolean intersects(GraffitiSelectableItem item, RectF rect) {
+        Entry entry = mEntries.get(item);
+        return entry != null && RectF.intersects(entry.mBounds, rect);
+    }
+
+    /**
+     * 查找范围与rect相交的元素，按层级从下到上放入out
+     *
+     * @param rect 当前涂鸦坐标系中的范围
+     */
+    void query(RectF rect, ArrayList<GraffitiSelectableItem> out) {
+        out.clear();
+        mQueryStamp++;
+        int left = cell(rect.left), top = cell(rect.top), right = cell(rect.right), bottom = cell(rect.bottom);
+        for (int cy = top; cy <= bottom; cy++) {
+            for (int cx = left; cx <= right; cx++) {
+                ArrayList<Entry> cell = mCells.get(key(cx, cy));
+                if (cell == null) {
+                    continue;
+                }
+                for (int i = 0; i < cell.size(); i++) {
+                    Entry entry = cell.get(i);
+                    if (entry.mQueryStamp == mQueryStamp || !RectF.intersects(entry.mBounds, rect)) {
+                        continue;
+                    }
+                    entry.mQueryStamp = mQueryStamp;
+                    mQueryEntries.add(entry);
+                }
+            }
+        }
+        Collections.sort(mQueryEntries, ORDER); // 全部找到后按层级排序一次
+        for (int i = 0; i < mQueryEntries.size(); i++) {
+            out.add(mQueryEntries.get(i).mItem);
+        }
+        mQueryEntries.clear();
+    }
+
+    private void computeBounds(Entry entry) {
+        computeBounds(entry.mItem, mRotateDegree, mMatrix, mTempXy, entry.mBounds);
+
+        entry.mLeft = cell(entry.mBounds.left);
+        entry.mTop = cell(entry.mBounds.top);
+        entry.mRight = cell(entry.mBounds.right);
+        entry.mBottom = cell(entry.mBounds.bottom);
+    }
+
+    private void insert(Entry entry) {
+        for (int cy = entry.mTop; cy <= entry.mBottom; cy++) {
+            for (int cx = entry.mLeft; cx <= entry.mRight; cx++) {
+                mCells.obtain(key(cx, cy)).add(entry);
+            }
+        }
+        if (!mIsIndexedBoundsDirty) {
+            mIndexedBounds.union(entry.mBounds);
+        }
+    }
+
+    private void erase(Entry entry, int left, int top, int right, int bottom) {
+        for (int cy = top; cy <= bottom; cy++) {
+            for (int cx = left; cx <= right; cx++) {
+                ArrayList<Entry> cell = mCells.get(key(cx, cy));
+                if (cell != null) {
+                    cell.remove(entry); // 变空的网格保留，之后复用
+                }
+            }
+        }
+        mIsIndexedBoundsDirty = true;
+    }
+
+    /**
+     * 计算元素旋转后在涂鸦坐标系中的外接矩形
+     *
+     * @param matrix 临时使用的矩阵
+     * @param xy     临时使用的数组，长度为2
+     */
+    static void computeBounds(GraffitiSelectableItem item, int rotateDegree, Matrix matrix, float[] xy, RectF bounds) {
+        item.getXy(rotateDegree, xy);
+        // 与绘制时的变换一致：平移到元素的起始点，再旋转
+        matrix.setRotate(rotateDegree - item.getGraffitiRotate() + item.getItemRotate());
+        matrix.postTranslate(xy[0], xy[1]);
+        Rect rect = item.getBounds();
+        // isInIt()按取整后的角度判断，两者相差不到1度，元素上的点最多偏移到原点距离的sin(1°)倍
+        float distance = (float) Math.sqrt(Math.max(Math.max(sq(rect.left, rect.top), sq(rect.right, rect.top)),
+                Math.max(sq(rect.left, rect.bottom), sq(rect.right, rect.bottom))));
+        bounds.set(rect);
+        matrix.mapRect(bounds);
+        float pad = 1 + distance * SIN_1_DEGREE; // isInIt()还对坐标取整，再留出1px
+        bounds.inset(-pad, -pad);
+    }
+
+    private static float sq(float x, float y) {
+        return x * x + y * y;
+    }
+
+    private static int cell(float v) {
+        return (int) Math.floor(v / CELL_SIZE);
+    }
+
+    private static long key(int cx, int cy) {
+        return ((long) cx << 32) | (cy & 0xffffffffL);
+    }
+}
@@ -0,0 +1,140 @@
+package cn.hzw.graffiti;
+
+import java.util.ArrayList;
+
+/**
+ * 涂鸦图层的检查点（关键帧）
+ * 每隔一定数量的涂鸦路径保存一次图层快照，撤销时从最近的快照恢复，只需重绘快照之后的少量路径，
+ * 而不是重绘全部路径。快照占用的内存不超过设定的预算，超出时丢弃最旧的快照。
+ */
+class LayerCheckpoints {
+
+    static class Checkpoint {
+        final int mPathCount; // 快照包含的路径数量，即快照对应路径堆栈中前mPathCount个路径
+        final TiledLayer.Snapshot mSnapshot;
+
+        Checkpoint(int pathCount, TiledLayer.Snapshot snapshot) {
+            mPathCount = pathCount;
+            mSnapshot = snapshot;
+        }
+    }
+
+    private final ArrayList<Checkpoint> mCheckpoints = new ArrayList<>();
+    private int mInterval; // 每隔多少个路径保存一次快照，小于等于0时不保存
+    private long mMemoryBudget; // 快照可占用的最大内存（byte）
+    private long mMemorySize; // 快照当前占用的内存（byte）
+    private int mSkippedPathCount; // 最近一次因内存不足没有保存快照时的路径数量，0表示没有
+
+    LayerCheckpoints(int interval, long memoryBudget) {
+        mInterval = interval;
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * 第pathCount个路径绘制到图层后调用，距离上一个快照足够远时保存快照
+     *
+     * @param layer     当前图层
+     * @param pathCount 图层中已绘制的路径数量
+     */
+    void onPathDrawn(TiledLayer layer, int pathCount) {
+        if (mInterval <= 0) {
+            return;
+        }
+        if (pathCount - getLastPathCount() < mInterval) {
+            return;
+        }
+        long size = layer.getMemorySize(); // 只有已分配的图块需要保存
+        if (size > mMemoryBudget) {
+            mSkippedPathCount = pathCount; // 间隔一段后再尝试
+            return;
+        }
+        // 先释放最旧的快照，为新快照腾出预算
+        while (mMemorySize + size > mMemoryBudget && !mCheckpoints.isEmpty()) {
+            removeAt(0);
+        }
+
+        TiledLayer.Snapshot snapshot;
+        try {
+            snapshot = layer.snapshot();
+        } catch (OutOfMemoryError e) { // 内存不足时放弃快照，撤销时退化为重绘
+            mSkippedPathCount = pathCount;
+            return;
+        }
+        mCheckpoints.add(new Checkpoint(pathCount, snapshot));
+        mMemorySize += snapshot.getMemorySize();
+    }
+
+    /**
+     * 图层中已绘制pathCount个路径时，下一个快照最早在绘制到第几个路径时保存
+     * 与{@link #onPathDrawn}使用相同的规则，批量重绘时在这里分段并在每段之后调用onPathDrawn，保存的快照与逐个绘制时相同
+     */
+    int nextCheckpoint(int pathCount) {
+        if (mInterval <= 0) {
+            return Integer.MAX_VALUE;
+        }
+        // 间隔已经足够时（如间隔被改小），逐个绘制会在下一个路径之后保存
+        return Math.max(getLastPathCount() + mInterval, pathCount + 1);
+    }
+
+    /**
+     * 最近一个快照或最近一次因内存不足放弃快照时的路径数量，下一次在此之后间隔mInterval个路径
+     */
+    private int getLastPathCount() {
+        int last = mCheckpoints.isEmpty() ? 0 : mCheckpoints.get(mCheckpoints.size() - 1).mPathCount;
+        return Math.max(last, mSkippedPathCount);
+    }
+
+    /**
+     * 路径堆栈中只有前validCount个路径仍然有效，丢弃之后的快照，并返回最近的有效快照
+     *
+     * @return 没有可用的快照时返回null
+     */
+    Checkpoint restore(int validCount) {
+        if (mSkippedPathCount > validCount) {
+            mSkippedPathCount = 0;
+        }
+        for (int i = mCheckpoints.size() - 1; i >= 0; i--) {
+            if (mCheckpoints.get(i).mPathCount <= validCount) {
+                return mCheckpoints.get(i);
+            }
+            removeAt(i);
+        }
+        return null;
+    }
+
+    void clear() {
+        for (int i = mCheckpoints.size() - 1; i >= 0; i--) {
+            removeAt(i);
+        }
+        mSkippedPathCount = 0;
+    }
+
+    void setInterval(int interval) {
+        mInterval = interval;
+    }
+
+    int getInterval() {
+        return mInterval;
+    }
+
+    void setMemoryBudget(long memoryBudget) {
+        mMemoryBudget = memoryBudget;
+        while (mMemorySize > mMemoryBudget && !mCheckpoints.isEmpty()) {
+            removeAt(0);
+        }
+    }
+
+    long getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    long getMemorySize() {
+        return mMemorySize;
+    }
+
+    private void removeAt(int index) {
+        Checkpoint checkpoint = mCheckpoints.remove(index);
+        mMemorySize -= checkpoint.mSnapshot.getMemorySize();
+        checkpoint.mSnapshot.recycle();
+    }
+}
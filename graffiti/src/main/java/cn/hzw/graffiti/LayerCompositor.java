@@ -0,0 +1,189 @@
+package cn.hzw.graffiti;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 在后台线程中合成涂鸦图层
+ * 路径的绘制、撤销时的恢复和旋转后的重绘都在单独的线程中按顺序进行，完成后发布图层的只读副本，在主线程中替换显示的图层。
+ * 后台图层与副本共享图块，修改前才复制，因此发布不需要复制像素，主线程也不会读到正在修改的图块。
+ * 合成过程中提交的多个状态只合成最新的一个。
+ */
+class LayerCompositor {
+
+    /**
+     * 在主线程中回调
+     */
+    interface Callback {
+        void onComposited(Result result);
+    }
+
+    /**
+     * 合成的结果，不可修改
+     */
+    static class Result {
+        final TiledLayer mLayer; // 只读的图层
+        final LayerMipmap mMipmap; // 只读的原图和图层的各级缩小图
+        final OperationLog.Snapshot<GraffitiPath> mPaths; // 图层中包含的路径
+        final int mRotateDegree; // 图层对应的旋转角度
+
+        Result(TiledLayer layer, LayerMipmap mipmap, OperationLog.Snapshot<GraffitiPath> paths, int rotateDegree) {
+            mLayer = layer;
+            mMipmap = mipmap;
+            mPaths = paths;
+            mRotateDegree = rotateDegree;
+        }
+    }
+
+    private static final long KEEP_ALIVE_SECONDS = 3; // 空闲后线程的存活时间
+
+    private final ThreadPoolExecutor mExecutor; // 单线程，合成和设置按提交的顺序执行
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Callback mCallback;
+    private final AtomicReference<RenderState> mPending = new AtomicReference<>(); // 等待合成的最新状态
+    private final LayerReplay mReplay = new LayerReplay(); // 只在后台线程中访问
+    private volatile Result mResult; // 最近合成的结果
+    private volatile long mUndoMemorySize;
+
+    // 以下只在主线程中访问，用于立即返回设置的值
+    private GraffitiView.UndoMode mUndoMode = GraffitiView.UndoMode.CHECKPOINT;
+    private int mCheckpointInterval = 20;
+    private long mUndoMemoryBudget = Runtime.getRuntime().maxMemory() / 8;
+
+    private final Runnable mCompose = new Runnable() {
+        @Override
+        public void run() {
+            RenderState state = mPending.getAndSet(null);
+            if (state == null) { // 已在之前的任务中合成
+                return;
+            }
+            mReplay.sync(state);
+            final Result result = new Result(mReplay.getLayer().publish(), mReplay.getMipmap().publish(), state.mPaths, state.mRotateDegree);
+            mResult = result;
+            mUndoMemorySize = mReplay.getUndoMemorySize();
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (result == mResult) { // 之后又有新的结果时跳过
+                        mCallback.onComposited(result);
+                    }
+                }
+            });
+        }
+    };
+
+    LayerCompositor(Callback callback) {
+        mCallback = callback;
+        mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "GraffitiCompositor");
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 提交需要合成的状态，只需要图片和路径记录。可以在任意线程中调用
+     */
+    void submit(RenderState state) {
+        if (mPending.getAndSet(state) == null) { // 已有等待执行的任务时，该任务会合成最新的状态
+            mExecutor.execute(mCompose);
+        }
+    }
+
+    /**
+     * 等待已提交的状态合成完成，在需要准确的图层时调用（如保存）
+     *
+     * @return 最近合成的结果，没有提交过状态时返回null
+     */
+    Result flush() {
+        Future<?> future = mExecutor.submit(mCompose);
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return mResult;
+    }
+
+    /**
+     * 释放后台的图层和全部快照，已发布的结果不受影响，之后提交的状态会重新合成整个图层
+     */
+    void release() {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mReplay.release();
+                mResult = null;
+                mUndoMemorySize = 0;
+            }
+        });
+    }
+
+    Result getResult() {
+        return mResult;
+    }
+
+    void setUndoMode(final GraffitiView.UndoMode undoMode) {
+        mUndoMode = undoMode;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mReplay.setUndoMode(undoMode);
+                mUndoMemorySize = mReplay.getUndoMemorySize();
+            }
+        });
+    }
+
+    GraffitiView.UndoMode getUndoMode() {
+        return mUndoMode;
+    }
+
+    void setCheckpointInterval(final int interval) {
+        mCheckpointInterval = interval;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mReplay.setCheckpointInterval(interval);
+            }
+        });
+    }
+
+    int getCheckpointInterval() {
+        return mCheckpointInterval;
+    }
+
+    void setUndoMemoryBudget(final long memoryBudget) {
+        mUndoMemoryBudget = memoryBudget;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mReplay.setUndoMemoryBudget(memoryBudget);
+                mUndoMemorySize = mReplay.getUndoMemorySize();
+            }
+        });
+    }
+
+    long getUndoMemoryBudget() {
+        return mUndoMemoryBudget;
+    }
+
+    /**
+     * 最近一次合成后撤销快照占用的内存（byte）
+     */
+    long getUndoMemorySize() {
+        return mUndoMemorySize;
+    }
+}
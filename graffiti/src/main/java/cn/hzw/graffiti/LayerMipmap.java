@@ -0,0 +1,183 @@
+package cn.hzw.graffiti;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.Rect;
+
+/**
+ * 原图和涂鸦图层的多级缩小图（mipmap）
+ * 第k级的宽高是原图的1/2^k，缩小显示时绘制缩小倍数不超过当前缩放的最小一级，每帧需要采样的像素数与屏幕的大小有关，而与图片的大小无关。
+ * 原图的各级在创建时生成一次。涂鸦图层的各级同样分块，只根据上一级中被修改过的图块逐级更新对应的区域，
+ * 与图层一样可以发布只读的副本。只能在同一个线程中更新。
+ */
+class LayerMipmap {
+
+    static final int MAX_LEVEL = 4; // 最多缩小到1/16
+    private static final int MIN_LEVEL_SIZE = TiledLayer.TILE_SIZE; // 最小一级的长边不小于一个图块
+
+    private final Bitmap mBitmap; // 原图
+    private final Bitmap[] mBitmapLevels; // 原图从第1级开始的各级
+    private final TiledLayer mLayer; // 涂鸦图层，发布的副本中为null
+    private final TiledLayer[] mLayerLevels; // 涂鸦图层从第1级开始的各级
+    private final Paint mFilterPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mLevelClip = new Rect();
+
+    // 更新时正在缩小的图块
+    private Bitmap mSrcTile;
+    private final Rect mSrcRect = new Rect(), mDstRect = new Rect();
+    private final TiledLayer.Painter mDownsamplePainter = new TiledLayer.Painter() {
+        @Override
+        public void paint(Canvas canvas) {
+            canvas.clipRect(mDstRect);
+            canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            if (mSrcTile != null) {
+                canvas.scale(0.5f, 0.5f);
+                canvas.drawBitmap(mSrcTile, mSrcRect.left, mSrcRect.top, mFilterPaint);
+            }
+        }
+    };
+
+    /**
+     * 生成原图的各级，并根据图层中已有的图块生成图层的各级
+     */
+    LayerMipmap(Bitmap bitmap, TiledLayer layer) {
+        int count = 0;
+        while (count < MAX_LEVEL && Math.max(bitmap.getWidth(), bitmap.getHeight()) >> (count + 1) >= MIN_LEVEL_SIZE) {
+            count++;
+        }
+        Bitmap[] bitmapLevels = new Bitmap[count];
+        try {
+            Bitmap src = bitmap;
+            for (int i = 0; i < count; i++) {
+                bitmapLevels[i] = Bitmap.createBitmap(getLevelSize(bitmap.getWidth(), i + 1),
+                        getLevelSize(bitmap.getHeight(), i + 1), bitmap.getConfig() == null ? Bitmap.Config.ARGB_8888 : bitmap.getConfig());
+                Canvas canvas = new Canvas(bitmapLevels[i]);
+                canvas.scale(0.5f, 0.5f);
+                canvas.drawBitmap(src, 0, 0, mFilterPaint);
+                src = bitmapLevels[i];
+            }
+        } catch (OutOfMemoryError e) { // 内存不足时只使用已生成的几级
+            for (int i = 0; i < count; i++) {
+                if (bitmapLevels[i] == null) {
+                    Bitmap[] levels = new Bitmap[i];
+                    System.arraycopy(bitmapLevels, 0, levels, 0, i);
+                    bitmapLevels = levels;
+                    break;
+                }
+            }
+        }
+        mBitmap = bitmap;
+        mBitmapLevels = bitmapLevels;
+        mLayer = layer;
+        mLayerLevels = new TiledLayer[bitmapLevels.length];
+        for (int i = 0; i < mLayerLevels.length; i++) {
+            mLayerLevels[i] = new TiledLayer(getLevelSize(layer.getWidth(), i + 1), getLevelSize(layer.getHeight(), i + 1));
+        }
+        update(true);
+    }
+
+    private LayerMipmap(Bitmap bitmap, Bitmap[] bitmapLevels, TiledLayer[] layerLevels) {
+        mBitmap = bitmap;
+        mBitmapLevels = bitmapLevels;
+        mLayer = null;
+        mLayerLevels = layerLevels;
+    }
+
+    Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    private static int getLevelSize(int size, int level) {
+        return (size + (1 << level) - 1) >> level;
+    }
+
+    /**
+     * 根据图层中被修改过的图块更新各级，并清除图层的修改标记
+     */
+    void update() {
+        update(false);
+    }
+
+    private void update(boolean all) {
+        TiledLayer src = mLayer;
+        for (TiledLayer dst : mLayerLevels) {
+            for (int i = 0; i < src.getTileCount(); i++) {
+                if (!all && !src.isDirty(i)) {
+                    continue;
+                }
+                mSrcTile = src.getTile(i);
+                src.getTileBounds(i, mSrcRect);
+                mDstRect.set(mSrcRect.left / 2, mSrcRect.top / 2, (mSrcRect.right + 1) / 2, (mSrcRect.bottom + 1) / 2);
+                int index = dst.getTileIndex(mDstRect.left, mDstRect.top); // 图块对齐，缩小后落在下一级的一个图块中
+                if (mSrcTile != null || dst.getTile(index) != null) { // 都是透明时无需处理
+                    dst.drawTile(index, mDownsamplePainter);
+                }
+            }
+            src.clearDirty();
+            src = dst;
+        }
+        src.clearDirty();
+        mSrcTile = null;
+    }
+
+    /**
+     * 发布只读的副本，原图的各级直接共享，图层的各级发布各自的副本
+     */
+    LayerMipmap publish() {
+        TiledLayer[] layerLevels = new TiledLayer[mLayerLevels.length];
+        for (int i = 0; i < layerLevels.length; i++) {
+            layerLevels[i] = mLayerLevels[i].publish();
+        }
+        return new LayerMipmap(mBitmap, mBitmapLevels, layerLevels);
+    }
+
+    /**
+     * 以scale缩放显示bitmap时使用的级别，0表示使用原图和图层本身
+     */
+    int getLevel(Bitmap bitmap, float scale) {
+        if (bitmap != mBitmap) { // 图片已改变（如旋转），新的各级尚未生成
+            return 0;
+        }
+        int level = 0;
+        while (level < mBitmapLevels.length && scale <= 1f / (2 << level)) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * 绘制原图的第level级，画布的坐标系与原图一致
+     */
+    void drawBitmap(Canvas canvas, int level) {
+        canvas.save();
+        canvas.scale(1 << level, 1 << level);
+        canvas.drawBitmap(mBitmapLevels[level - 1], 0, 0, mFilterPaint);
+        canvas.restore();
+    }
+
+    /**
+     * 绘制图层的第level级，画布的坐标系与图层一致
+     *
+     * @param clip 需要绘制的范围（图层坐标系）
+     */
+    void drawLayer(Canvas canvas, int level, Rect clip) {
+        mLevelClip.set(clip.left >> level, clip.top >> level,
+                getLevelSize(clip.right, level), getLevelSize(clip.bottom, level));
+        canvas.save();
+        canvas.scale(1 << level, 1 << level);
+        mLayerLevels[level - 1].drawTo(canvas, mLevelClip, mFilterPaint);
+        canvas.restore();
+    }
+
+    /**
+     * 释放图层的各级，原图的各级可能仍在显示，由GC回收
+     */
+    void release() {
+        for (TiledLayer level : mLayerLevels) {
+            level.clear();
+        }
+    }
+}
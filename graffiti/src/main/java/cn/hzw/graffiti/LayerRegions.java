@@ -0,0 +1,127 @@
+package cn.hzw.graffiti;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+
+/**
+ * 涂鸦图层的局部快照
+ * 路径绘制到图层之前，保存路径范围内的像素，撤销时直接把这块像素贴回图层，
+ * 撤销的开销只与路径覆盖的面积有关。快照占用的内存不超过设定的预算，超出时丢弃最旧的快照。
+ */
+class LayerRegions {
+
+    private static class Region {
+        final GraffitiPath mPath;
+        final int mIndex; // 路径在路径堆栈中的位置
+        final Bitmap mBitmap; // 路径绘制前，该范围内的像素，为null时表示该范围完全透明
+        final Rect mRect;
+        final long mMemorySize;
+
+        Region(GraffitiPath path, int index, Bitmap bitmap, Rect rect) {
+            mPath = path;
+            mIndex = index;
+            mBitmap = bitmap;
+            mRect = rect;
+            mMemorySize = bitmap == null ? 0 : (long) bitmap.getRowBytes() * bitmap.getHeight();
+        }
+    }
+
+    private final ArrayList<Region> mRegions = new ArrayList<>();
+    private long mMemoryBudget; // 快照可占用的最大内存（byte）
+    private long mMemorySize; // 快照当前占用的内存（byte）
+
+    LayerRegions(long memoryBudget) {
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * 路径绘制到图层之前调用，保存路径范围内的像素
+     *
+     * @param layer  当前图层
+     * @param path   即将绘制的路径
+     * @param index  路径在路径堆栈中的位置
+     * @param bounds 路径在图层中的范围
+     */
+    void capture(TiledLayer layer, GraffitiPath path, int index, Rect bounds) {
+        Rect rect = new Rect(bounds);
+        if (!rect.intersect(0, 0, layer.getWidth(), layer.getHeight())) { // 路径完全在图层外，撤销时无需恢复像素
+            rect.setEmpty();
+        }
+        long size = (long) rect.width() * rect.height() * 4;
+        if (size > mMemoryBudget) {
+            return;
+        }
+        while (mMemorySize + size > mMemoryBudget && !mRegions.isEmpty()) {
+            removeAt(0);
+        }
+
+        Bitmap bitmap;
+        try {
+            bitmap = layer.copyRegion(rect);
+        } catch (OutOfMemoryError e) { // 内存不足时放弃快照，撤销时退化为重绘
+            return;
+        }
+        Region region = new Region(path, index, bitmap, rect);
+        mRegions.add(region);
+        mMemorySize += region.mMemorySize;
+    }
+
+    /**
+     * 撤销路径，把路径绘制前的像素贴回图层
+     *
+     * @param layer 当前图层
+     * @param path  撤销的路径
+     * @param index 路径在路径堆栈中的位置
+     * @return 没有对应的快照时返回false，此时需要重建图层
+     */
+    boolean restore(TiledLayer layer, GraffitiPath path, int index) {
+        // 该路径之后的快照包含了该路径的像素，均已失效
+        discardFrom(index + 1);
+        if (mRegions.isEmpty()) {
+            return false;
+        }
+        Region region = mRegions.get(mRegions.size() - 1);
+        if (region.mIndex != index || region.mPath != path) {
+            return false;
+        }
+        layer.restoreRegion(region.mBitmap, region.mRect);
+        removeAt(mRegions.size() - 1);
+        return true;
+    }
+
+    /**
+     * 丢弃路径堆栈中第index个及之后的路径的快照
+     */
+    void discardFrom(int index) {
+        while (!mRegions.isEmpty() && mRegions.get(mRegions.size() - 1).mIndex >= index) {
+            removeAt(mRegions.size() - 1);
+        }
+    }
+
+    void clear() {
+        for (int i = mRegions.size() - 1; i >= 0; i--) {
+            removeAt(i);
+        }
+    }
+
+    void setMemoryBudget(long memoryBudget) {
+        mMemoryBudget = memoryBudget;
+        while (mMemorySize > mMemoryBudget && !mRegions.isEmpty()) {
+            removeAt(0);
+        }
+    }
+
+    long getMemorySize() {
+        return mMemorySize;
+    }
+
+    private void removeAt(int index) {
+        Region region = mRegions.remove(index);
+        mMemorySize -= region.mMemorySize;
+        if (region.mBitmap != null) {
+            region.mBitmap.recycle();
+        }
+    }
+}
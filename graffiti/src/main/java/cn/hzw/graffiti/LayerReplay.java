@@ -0,0 +1,212 @@
+package cn.hzw.graffiti;
+
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * 在后台线程中维护的涂鸦图层
+ * 根据路径记录的快照使图层与之一致：只绘制新增的路径，路径被撤销或移除时从撤销快照恢复，
+ * 图片尺寸或旋转角度改变时重建图层。只能在同一个线程中使用。
+ */
+class LayerReplay {
+
+    private static final int DEFAULT_CHECKPOINT_INTERVAL = 20; // 默认每隔20个路径保存一次图层快照
+
+    private GraffitiRenderer mRenderer;
+    private TiledLayer mLayer;
+    private int mLayerRotateDegree; // 图层对应的旋转角度
+    private OperationLog.Snapshot<GraffitiPath> mDrawnPaths; // 已绘制到图层中的路径
+    private LayerCheckpoints mCheckpoints = new LayerCheckpoints(DEFAULT_CHECKPOINT_INTERVAL,
+            Runtime.getRuntime().maxMemory() / 8);
+    private LayerRegions mLayerRegions = new LayerRegions(Runtime.getRuntime().maxMemory() / 8);
+    private GraffitiView.UndoMode mUndoMode = GraffitiView.UndoMode.CHECKPOINT;
+
+    private GraffitiPath mLayerPath; // 正在绘制到图层中的路径
+    private final TiledLayer.Painter mLayerPainter = new TiledLayer.Painter() {
+        @Override
+        public void paint(Canvas canvas) {
+            mRenderer.drawPath(canvas, mLayerPath);
+        }
+    };
+    private final RectF mPathBoundsF = new RectF();
+    private final Rect mPathBounds = new Rect();
+    private ParallelReplay mParallelReplay; // 重绘大量路径时使用
+    private final PathPictures mPictures = new PathPictures(Runtime.getRuntime().maxMemory() / 16); // 已完成的路径按段录制的显示列表
+    private LayerMipmap mMipmap; // 原图和图层的各级缩小图
+
+    /**
+     * 使图层与state中的图片和路径记录一致
+     */
+    void sync(RenderState state) {
+        if (mRenderer == null) {
+            mRenderer = new GraffitiRenderer(state.mPivotX, state.mPivotY, true);
+        }
+        mRenderer.setRotateDegree(state.mRotateDegree);
+        mRenderer.setEraserMatrix(state.mEraserMatrix);
+        mRenderer.setBitmap(state.mBitmap, state.mBitmapEraser);
+        if (mLayer == null || mLayer.getWidth() != state.mBitmap.getWidth()
+                || mLayer.getHeight() != state.mBitmap.getHeight() || mLayerRotateDegree != state.mRotateDegree) {
+            // 图片尺寸或旋转角度改变，之前的图层和快照均已失效
+            if (mLayer != null) {
+                mLayer.clear();
+            }
+            releaseMipmap();
+            mLayer = new TiledLayer(state.mBitmap.getWidth(), state.mBitmap.getHeight());
+            mLayerRotateDegree = state.mRotateDegree;
+            mCheckpoints.clear();
+            mLayerRegions.clear();
+            mDrawnPaths = null;
+        }
+
+        OperationLog.Snapshot<GraffitiPath> paths = state.mPaths;
+        int start = 0;
+        int captureStart = paths.size(); // 重建图层时不保存局部快照，与之前的撤销方式一致
+        if (mDrawnPaths != null) {
+            int valid = paths.commonPrefix(mDrawnPaths);
+            start = valid < mDrawnPaths.size() ? undo(valid) : valid;
+            captureStart = valid;
+        }
+        // 已有的路径（重建图层或撤销后）按图块在多个线程中重绘，新增的路径需要逐个保存局部快照
+        int replayEnd = mUndoMode == GraffitiView.UndoMode.REGION ? Math.min(captureStart, paths.size()) : paths.size();
+        if (replayEnd - start >= ParallelReplay.MIN_PATH_COUNT) {
+            start = replayParallel(state, start, replayEnd);
+        }
+        for (int i = start; i < paths.size(); i++) {
+            GraffitiPath path = paths.get(i);
+            path.computeBounds(mRenderer.getRotateMatrix(path), mPathBoundsF);
+            if (mUndoMode == GraffitiView.UndoMode.REGION && i >= captureStart) {
+                mPathBoundsF.roundOut(mPathBounds);
+                mLayerRegions.capture(mLayer, path, i, mPathBounds);
+            }
+            mLayerPath = path;
+            mLayer.draw(mPathBoundsF, mLayerPainter);
+            mLayerPath = null;
+            if (mUndoMode == GraffitiView.UndoMode.CHECKPOINT) {
+                mCheckpoints.onPathDrawn(mLayer, i + 1);
+            }
+        }
+        mDrawnPaths = paths;
+        updateMipmap(state);
+
+        // 丢弃被撤销的段，新增的段在多线程重绘需要时才录制
+        mPictures.trim(paths.size());
+    }
+
+    /**
+     * 根据图层中被修改过的图块更新各级缩小图，图片改变时重新生成
+     */
+    private void updateMipmap(RenderState state) {
+        if (mMipmap != null && mMipmap.getBitmap() == state.mBitmap) {
+            mMipmap.update();
+            return;
+        }
+        releaseMipmap();
+        mMipmap = new LayerMipmap(state.mBitmap, mLayer);
+    }
+
+    private void releaseMipmap() {
+        if (mMipmap != null) {
+            mMipmap.release();
+            mMipmap = null;
+        }
+    }
+
+    /**
+     * 多线程重绘第start到第end个（不含）路径，在保存快照的位置分段，快照与逐个绘制时相同
+     *
+     * @return end
+     */
+    private int replayParallel(RenderState state, int start, int end) {
+        if (mParallelReplay == null) {
+            mParallelReplay = new ParallelReplay();
+        }
+        while (start < end) {
+            int next = end;
+            if (mUndoMode == GraffitiView.UndoMode.CHECKPOINT) {
+                next = Math.min(end, mCheckpoints.nextCheckpoint(start));
+            }
+            mParallelReplay.replay(mLayer, state.mPaths, start, next, mRenderer, mPictures, state);
+            if (mUndoMode == GraffitiView.UndoMode.CHECKPOINT) {
+                mCheckpoints.onPathDrawn(mLayer, next);
+            }
+            start = next;
+        }
+        return end;
+    }
+
+    /**
+     * 图层中只有前validCount个路径仍然有效，恢复图层
+     *
+     * @return 需要从第几个路径开始重绘
+     */
+    private int undo(int validCount) {
+        if (mUndoMode == GraffitiView.UndoMode.REGION) {
+            // 只撤销了最后一个路径时，贴回路径绘制前的像素即可
+            if (validCount == mDrawnPaths.size() - 1
+                    && mLayerRegions.restore(mLayer, mDrawnPaths.get(validCount), validCount)) {
+                return validCount;
+            }
+            mLayerRegions.discardFrom(validCount);
+        }
+        LayerCheckpoints.Checkpoint checkpoint = mCheckpoints.restore(validCount);
+        if (checkpoint == null) {
+            mLayer.clear();
+            return 0;
+        }
+        mLayer.restore(checkpoint.mSnapshot);
+        return checkpoint.mPathCount;
+    }
+
+    GraffitiRenderer getRenderer() {
+        return mRenderer;
+    }
+
+    TiledLayer getLayer() {
+        return mLayer;
+    }
+
+    LayerMipmap getMipmap() {
+        return mMipmap;
+    }
+
+    void setUndoMode(GraffitiView.UndoMode undoMode) {
+        if (undoMode == mUndoMode) {
+            return;
+        }
+        mUndoMode = undoMode;
+        mCheckpoints.clear();
+        mLayerRegions.clear();
+    }
+
+    void setCheckpointInterval(int interval) {
+        mCheckpoints.setInterval(interval);
+    }
+
+    void setUndoMemoryBudget(long memoryBudget) {
+        mCheckpoints.setMemoryBudget(memoryBudget);
+        mLayerRegions.setMemoryBudget(memoryBudget);
+    }
+
+    /**
+     * 当前撤销方式保存的快照占用的内存（byte）
+     */
+    long getUndoMemorySize() {
+        return mUndoMode == GraffitiView.UndoMode.REGION ? mLayerRegions.getMemorySize() : mCheckpoints.getMemorySize();
+    }
+
+    /**
+     * 释放图层和全部快照
+     */
+    void release() {
+        mPictures.clear();
+        mCheckpoints.clear();
+        mLayerRegions.clear();
+        releaseMipmap();
+        if (mLayer != null) {
+            mLayer.clear();
+            mLayer = null;
+        }
+        mDrawnPaths = null;
+    }
+}
@@ -0,0 +1,33 @@
+package cn.hzw.graffiti;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.view.View;
+
+/**
+ * 导航小地图
+ * 放大后在角落里显示整张图片的缩略图和当前可见的范围，不需要缩小图片就能知道所在的位置。
+ * 缩略图使用后台线程（或绘制线程）合成图层时逐级更新的最小一级缩小图，不重新绘制涂鸦，只有被修改过的图块对应的区域会更新。
+ * 完整显示图片时不绘制任何内容。不处理触摸事件，事件会传递给下面的GraffitiView。
+ * {@link GraffitiView#setNavigator(NavigatorView)}
+ */
+public class NavigatorView extends View {
+
+    private GraffitiView mGraffitiView;
+
+    public NavigatorView(Context context) {
+        super(context);
+    }
+
+    void setGraffitiView(GraffitiView graffitiView) {
+        mGraffitiView = graffitiView;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mGraffitiView != null) {
+            mGraffitiView.drawNavigator(canvas, getWidth(), getHeight());
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package cn.hzw.graffiti;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * 涂鸦操作记录
+ * 所有操作按顺序追加到数组中，路径和可选择的元素同时按顺序记录在各自的数组中，追加（均摊）和撤销最后一个操作都是O(1)的。
+ * 已经对快照可见的位置不会被原地修改，需要修改时先复制数组，因此快照在绘制时可以安全地遍历而无需复制。
+ * 每一帧绘制都会获取快照，撤销后被撤销的位置通常仍对快照可见，撤销后的第一次追加会复制一次数组（O(n)），之后的追加恢复为O(1)。
+ */
+class OperationLog {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * 某一时刻的记录，之后的修改不会影响快照
+     */
+    static class Snapshot<T> implements Iterable<T> {
+        private final Object[] mArray;
+        private final int mSize;
+
+        private Snapshot(Object[] array, int size) {
+            mArray = array;
+            mSize = size;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        @SuppressWarnings("unchecked")
+        T get(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("index:" + index + " size:" + mSize);
+            }
+            return (T) mArray[index];
+        }
+
+        /**
+         * 复制快照中的元素
+         */
+        @SuppressWarnings("unchecked")
+        ArrayList<T> toList() {
+            ArrayList<T> list = new ArrayList<>(mSize);
+            for (int i = 0; i < mSize; i++) {
+                list.add((T) mArray[i]);
+            }
+            return list;
+        }
+
+        /**
+         * 与另一个快照从头开始相同的元素个数
+         */
+        int commonPrefix(Snapshot<T> other) {
+            int size = Math.min(mSize, other.mSize);
+            if (mArray == other.mArray) { // 同一个数组中对快照可见的位置不会被修改
+                return size;
+            }
+            for (int i = 0; i < size; i++) {
+                if (mArray[i] != other.mArray[i]) {
+                    return i;
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+            return new Iterator<T>() {
+                private int mCursor;
+
+                @Override
+                public boolean hasNext() {
+                    return mCursor < mSize;
+                }
+
+                @SuppressWarnings("unchecked")
+                @Override
+                public T next() {
+                    if (mCursor >= mSize) {
+                        throw new NoSuchElementException();
+                    }
+                    return (T) mArray[mCursor++];
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    /**
+     * 只追加的数组，游标mSize之后的位置是空闲的
+     */
+    private static class Entries<T> extends AbstractList<T> {
+        private Object[] mArray = new Object[INITIAL_CAPACITY];
+        private int mSize;
+        private int mShared; // 前mShared个位置对快照可见，不能原地修改
+
+        void append(T entry) {
+            if (mSize == mArray.length) {
+                mArray = Arrays.copyOf(mArray, mSize * 2);
+                mShared = 0; // 旧数组留给快照，新数组不与快照共享
+            } else {
+                ensureWritable(mSize);
+            }
+            mArray[mSize++] = entry;
+        }
+
+        @SuppressWarnings("unchecked")
+        T removeLast() {
+            T entry = (T) mArray[--mSize];
+            if (mSize >= mShared) {
+                mArray[mSize] = null;
+            } // 否则快照仍在使用该位置，留给下次追加时复制数组
+            return entry;
+        }
+
+        @Override
+        public T remove(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("index:" + index + " size:" + mSize);
+            }
+            ensureWritable(index);
+            @SuppressWarnings("unchecked")
+            T entry = (T) mArray[index];
+            System.arraycopy(mArray, index + 1, mArray, index, mSize - index - 1);
+            mArray[--mSize] = null;
+            return entry;
+        }
+
+        @Override
+        public int lastIndexOf(Object entry) { // 按引用查找，从最近的记录开始
+            for (int i = mSize - 1; i >= 0; i--) {
+                if (mArray[i] == entry) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public void clear() {
+            if (mShared > 0) {
+                mArray = new Object[INITIAL_CAPACITY];
+                mShared = 0;
+            } else {
+                Arrays.fill(mArray, 0, mSize, null);
+            }
+            mSize = 0;
+        }
+
+        Snapshot<T> snapshot() {
+            mShared = Math.max(mShared, mSize);
+            return new Snapshot<>(mArray, mSize);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public T get(int index) {
+            if (index < 0 || index >= mSize) {
+                throw new IndexOutOfBoundsException("index:" + index + " size:" + mSize);
+            }
+            return (T) mArray[index];
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+
+        private void ensureWritable(int index) {
+            if (index < mShared) {
+                mArray = Arrays.copyOf(mArray, mArray.length);
+                mShared = 0;
+            }
+        }
+    }
+
+    private final Entries<Undoable> mOperations = new Entries<>();
+    private final Entries<GraffitiPath> mPaths = new Entries<>();
+    private final Entries<GraffitiSelectableItem> mItems = new Entries<>();
+
+    void addPath(GraffitiPath path) {
+        mOperations.append(path);
+        mPaths.append(path);
+    }
+
+    void addItem(GraffitiSelectableItem item) {
+        mOperations.append(item);
+        mItems.append(item);
+    }
+
+    /**
+     * 撤销最后一个操作
+     *
+     * @return 被撤销的操作，没有操作时返回null
+     */
+    Undoable undo() {
+        if (mOperations.size() == 0) {
+            return null;
+        }
+        Undoable operation = mOperations.removeLast();
+        // 各数组的顺序与操作顺序一致，最后一个操作必然是对应数组的最后一个元素
+        if (operation instanceof GraffitiPath) {
+            mPaths.removeLast();
+        } else {
+            mItems.removeLast();
+        }
+        return operation;
+    }
+
+    /**
+     * 移除指定的路径
+     *
+     * @return 路径被移除前在路径记录中的位置，不存在时返回-1
+     */
+    int removePath(GraffitiPath path) {
+        int index = mPaths.lastIndexOf(path);
+        if (index < 0) {
+            return -1;
+        }
+        mPaths.remove(index);
+        mOperations.remove(mOperations.lastIndexOf(path));
+        return index;
+    }
+
+    boolean removeItem(GraffitiSelectableItem item) {
+        int index = mItems.lastIndexOf(item);
+        if (index < 0) {
+            return false;
+        }
+        mItems.remove(index);
+        mOperations.remove(mOperations.lastIndexOf(item));
+        return true;
+    }
+
+    void clear() {
+        mOperations.clear();
+        mPaths.clear();
+        mItems.clear();
+    }
+
+    int size() {
+        return mOperations.size();
+    }
+
+    int getPathCount() {
+        return mPaths.size();
+    }
+
+    GraffitiPath getPath(int index) {
+        return mPaths.get(index);
+    }
+
+    Snapshot<GraffitiPath> snapshotPaths() {
+        return mPaths.snapshot();
+    }
+
+    Snapshot<GraffitiSelectableItem> snapshotItems() {
+        return mItems.snapshot();
+    }
+}
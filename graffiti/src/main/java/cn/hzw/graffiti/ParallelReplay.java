@@ -0,0 +1,210 @@
+package cn.hzw.graffiti;
+
+import android.graphics.Canvas;
+import android.graphics.Picture;
+import android.graphics.RectF;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多线程重绘涂鸦图层
+ * 图层按图块分给多个线程，每个线程领取下一个尚未绘制的图块，在该图块的画布上按顺序绘制与之相交的路径，
+ * 先完成的线程继续领取剩下的图块，各线程的负载自动均衡。每个图块内路径的顺序不变，结果与逐个绘制完全一致。
+ * 每个线程使用各自的{@link GraffitiRenderer}，调用重绘的线程也参与绘制。
+ * 完整的一段路径回放录制好的显示列表{@link PathPictures}，而不是逐个绘制；段中没有路径与图块相交时不回放。
+ */
+class ParallelReplay {
+
+    static final int MIN_PATH_COUNT = 8; // 路径较少时逐个绘制即可，不值得分配给多个线程
+
+    private static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final long KEEP_ALIVE_SECONDS = 3;
+    private static ThreadPoolExecutor sExecutor; // 所有图层共用，不包括调用重绘的线程
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(THREAD_COUNT - 1, THREAD_COUNT - 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "GraffitiReplay#" + mCount.incrementAndGet());
+                }
+            });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * 在一个线程中绘制领取到的图块
+     */
+    private class Worker implements Runnable, TiledLayer.Painter {
+
+        private final int mIndex; // 线程的序号
+        private GraffitiRenderer mRenderer;
+        private GraffitiPath mPath; // 正在绘制的路径
+        private Picture mPicture; // 正在回放的一段路径，不为null时不绘制mPath
+
+        Worker(int index) {
+            mIndex = index;
+        }
+
+        void prepare(RenderState state) {
+            if (mRenderer == null) {
+                mRenderer = new GraffitiRenderer(state.mPivotX, state.mPivotY, true);
+            }
+            mRenderer.setRotateDegree(state.mRotateDegree);
+            mRenderer.setEraserMatrix(state.mEraserMatrix);
+            mRenderer.setBitmap(state.mBitmap, state.mBitmapEraser);
+        }
+
+        @Override
+        public void run() {
+            try {
+                int tile;
+                while ((tile = mNextTile.getAndIncrement()) < mLayer.getTileCount()) {
+                    int i = mStart;
+                    while (i < mEnd) {
+                        PathPictures.Run run = i >= mRunStart && i < mRunEnd && (i - mRunStart) % PathPictures.RUN_LENGTH == 0
+                                ? mRuns.get((i - mRunStart) / PathPictures.RUN_LENGTH) : null;
+                        if (run != null) { // 已录制的完整的一段
+                            if (intersectsTile(run, tile)) {
+                                mPicture = run.getPicture(mIndex);
+                                mLayer.drawTile(tile, this);
+                                mPicture = null;
+                            }
+                            i += PathPictures.RUN_LENGTH;
+                        } else {
+                            if (mLayer.intersectsTile(mBounds[i - mStart], tile)) {
+                                mPath = mPaths.get(i);
+                                mLayer.drawTile(tile, this);
+                            }
+                            i++;
+                        }
+                    }
+                }
+                mPath = null;
+            } finally {
+                mFinished.countDown();
+            }
+        }
+
+        /**
+         * 段中至少有一个路径与图块相交时才回放，避免只因各路径的合并范围覆盖了图块而分配图块
+         */
+        private boolean intersectsTile(PathPictures.Run run, int tile) {
+            if (!mLayer.intersectsTile(run.mBounds, tile)) {
+                return false;
+            }
+            for (RectF bounds : run.mPathBounds) {
+                if (mLayer.intersectsTile(bounds, tile)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void paint(Canvas canvas) {
+            if (mPicture != null) {
+                canvas.drawPicture(mPicture);
+            } else {
+                mRenderer.drawPath(canvas, mPath);
+            }
+        }
+    }
+
+    private final Worker[] mWorkers = new Worker[THREAD_COUNT];
+    private RectF[] mBounds = new RectF[0]; // 路径的范围，下标从mStart开始
+
+    // 以下在一次重绘中不变，各线程只读
+    private TiledLayer mLayer;
+    private OperationLog.Snapshot<GraffitiPath> mPaths;
+    private int mStart, mEnd;
+    private int mRunStart, mRunEnd; // 其中按段回放的范围
+    private final ArrayList<PathPictures.Run> mRuns = new ArrayList<>();
+    private final AtomicInteger mNextTile = new AtomicInteger();
+    private CountDownLatch mFinished;
+
+    ParallelReplay() {
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Worker(i);
+        }
+    }
+
+    /**
+     * 把paths中第start到第end个（不含）路径绘制到图层中，返回时已全部绘制完成
+     *
+     * @param renderer 调用线程的绘制对象，用于计算路径的范围
+     * @param pictures 路径的显示列表，为null时逐个绘制
+     * @param state    图片和旋转角度
+     */
+    void replay(TiledLayer layer, OperationLog.Snapshot<GraffitiPath> paths, int start, int end,
+                GraffitiRenderer renderer, PathPictures pictures, RenderState state) {
+        if (mBounds.length < end - start) {
+            RectF[] bounds = new RectF[end - start];
+            System.arraycopy(mBounds, 0, bounds, 0, mBounds.length);
+            for (int i = mBounds.length; i < bounds.length; i++) {
+                bounds[i] = new RectF();
+            }
+            mBounds = bounds;
+        }
+        // 在分给各线程之前计算范围，路径中延迟计算的数据也在这里完成，之后各线程只读取路径
+        for (int i = start; i < end; i++) {
+            GraffitiPath path = paths.get(i);
+            path.computeBounds(renderer.getRotateMatrix(path), mBounds[i - start]);
+        }
+
+        // 范围内完整的段在分给各线程之前录制好，超出内存预算的段为null，逐个绘制
+        int length = PathPictures.RUN_LENGTH;
+        mRunStart = (start + length - 1) / length * length;
+        mRunEnd = Math.max(mRunStart, end / length * length);
+        if (pictures == null) {
+            mRunEnd = mRunStart;
+        } else {
+            pictures.beginReplay();
+        }
+        for (int i = mRunStart; i < mRunEnd; i += length) {
+            mRuns.add(pictures.obtain(paths, i / length, state));
+        }
+
+        mLayer = layer;
+        mPaths = paths;
+        mStart = start;
+        mEnd = end;
+        mNextTile.set(0);
+        int threadCount = Math.min(mWorkers.length, layer.getTileCount());
+        mFinished = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            mWorkers[i].prepare(state);
+        }
+        for (int i = 1; i < threadCount; i++) {
+            getExecutor().execute(mWorkers[i]);
+        }
+        mWorkers[0].run();
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mFinished.await(); // 其它线程领取到的图块还没有绘制完
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mLayer = null;
+        mPaths = null;
+        mRuns.clear();
+    }
+}
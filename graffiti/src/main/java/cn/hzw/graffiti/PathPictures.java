@@ -0,0 +1,227 @@
+package cn.hzw.graffiti;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Picture;
+import android.graphics.RectF;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * 已完成的路径的显示列表
+ * 路径记录按固定长度分段，每段在需要多线程重绘时才录制成一个Picture，之后的重绘直接回放，不再逐个设置画笔、选择着色器和重建图形。
+ * 段中的路径、旋转角度或底图改变时才重新录制。显示列表占用的内存不超过预算，超出时丢弃最久未使用的段，
+ * 放不下的段仍然逐个绘制。只能在同一个线程中录制，回放可以在多个线程中进行。
+ */
+class PathPictures {
+
+    static final int RUN_LENGTH = 10; // 每段的路径数量，与默认的快照间隔对齐
+    // 一个路径在显示列表中大约占用的内存（byte），API 28以下无法查询Picture的实际大小
+    private static final long PATH_MEMORY_SIZE = 2 * 1024;
+
+    /**
+     * 一段路径的显示列表
+     */
+    static class Run {
+        private final GraffitiPath[] mPaths = new GraffitiPath[RUN_LENGTH]; // 录制时的路径
+        private int mRotateDegree;
+        private Bitmap mBitmap, mBitmapEraser;
+        private final Matrix mEraserMatrix = new Matrix();
+        private Picture mPicture;
+        private Picture[] mCopies; // API 21以下Picture不能在多个线程中同时回放，每个线程使用各自的副本
+        private long mMemorySize; // 估计的显示列表占用的内存（byte）
+        private int mReplayStamp; // 最近一次使用它的重绘的编号，本次重绘中用到的段不能被丢弃
+        final RectF mBounds = new RectF(); // 这段路径在图层中的范围
+        final RectF[] mPathBounds = new RectF[RUN_LENGTH]; // 每个路径在图层中的范围
+
+        Run() {
+            for (int i = 0; i < RUN_LENGTH; i++) {
+                mPathBounds[i] = new RectF();
+            }
+        }
+
+        /**
+         * @param thread 回放的线程的序号
+         */
+        synchronized Picture getPicture(int thread) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP || thread == 0) {
+                return mPicture;
+            }
+            if (mCopies == null) {
+                mCopies = new Picture[thread + 1];
+            } else if (mCopies.length <= thread) {
+                Picture[] copies = new Picture[thread + 1];
+                System.arraycopy(mCopies, 0, copies, 0, mCopies.length);
+                mCopies = copies;
+            }
+            if (mCopies[thread] == null) {
+                mCopies[thread] = new Picture(mPicture);
+            }
+            return mCopies[thread];
+        }
+
+        private boolean isValid(OperationLog.Snapshot<GraffitiPath> paths, int start, RenderState state) {
+            if (mPicture == null || mRotateDegree != state.mRotateDegree || mBitmap != state.mBitmap
+                    || mBitmapEraser != state.mBitmapEraser || !mEraserMatrix.equals(state.mEraserMatrix)) {
+                return false;
+            }
+            for (int i = 0; i < RUN_LENGTH; i++) {
+                if (mPaths[i] != paths.get(start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final ArrayList<Run> mRuns = new ArrayList<>();
+    private final LinkedHashMap<Run, Run> mRecorded = new LinkedHashMap<>(16, 0.75f, true); // 已录制的段，按最近使用的顺序
+    private final long mMemoryBudget;
+    private long mMemorySize;
+    private int mReplayStamp;
+    private GraffitiRenderer mRecorder;
+    private final ArrayList<Bitmap> mCountedBitmaps = new ArrayList<>();
+
+    PathPictures(long memoryBudget) {
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * 开始一次重绘，之后通过{@link #obtain}获取的段在下一次重绘之前不会被丢弃
+     */
+    void beginReplay() {
+        mReplayStamp++;
+    }
+
+    /**
+     * 获取第index段路径（从paths中第index*RUN_LENGTH个开始）的显示列表，内容改变时重新录制
+     * 调用前paths中需要有完整的一段
+     *
+     * @return 超出内存预算时返回null，这段路径需要逐个绘制
+     */
+    Run obtain(OperationLog.Snapshot<GraffitiPath> paths, int index, RenderState state) {
+        while (mRuns.size() <= index) {
+            mRuns.add(new Run());
+        }
+        Run run = mRuns.get(index);
+        int start = index * RUN_LENGTH;
+        if (run.isValid(paths, start, state)) {
+            run.mReplayStamp = mReplayStamp;
+            mRecorded.get(run); // 更新使用顺序
+            return run;
+        }
+        release(run);
+
+        long size = estimateMemorySize(paths, start, state);
+        // 先丢弃最久未使用的段，为新的段腾出预算
+        Iterator<Run> iterator = mRecorded.keySet().iterator();
+        while (mMemorySize + size > mMemoryBudget && iterator.hasNext()) {
+            Run eldest = iterator.next();
+            if (eldest.mReplayStamp != mReplayStamp) {
+                iterator.remove();
+                discard(eldest);
+            }
+        }
+        if (mMemorySize + size > mMemoryBudget) {
+            return null;
+        }
+
+        if (mRecorder == null) {
+            mRecorder = new GraffitiRenderer(state.mPivotX, state.mPivotY, true);
+            mRecorder.setRecording(true);
+        }
+        mRecorder.setRotateDegree(state.mRotateDegree);
+        mRecorder.setEraserMatrix(state.mEraserMatrix);
+        mRecorder.setBitmap(state.mBitmap, state.mBitmapEraser);
+
+        Picture picture = new Picture();
+        Canvas canvas = picture.beginRecording(state.mBitmap.getWidth(), state.mBitmap.getHeight());
+        run.mBounds.setEmpty();
+        for (int i = 0; i < RUN_LENGTH; i++) {
+            GraffitiPath path = paths.get(start + i);
+            mRecorder.drawPath(canvas, path);
+            path.computeBounds(mRecorder.getRotateMatrix(path), run.mPathBounds[i]);
+            run.mBounds.union(run.mPathBounds[i]);
+            run.mPaths[i] = path;
+        }
+        picture.endRecording();
+
+        synchronized (run) {
+            run.mPicture = picture;
+            run.mCopies = null;
+        }
+        run.mRotateDegree = state.mRotateDegree;
+        run.mBitmap = state.mBitmap;
+        run.mBitmapEraser = state.mBitmapEraser;
+        run.mEraserMatrix.set(state.mEraserMatrix);
+        run.mMemorySize = size;
+        run.mReplayStamp = mReplayStamp;
+        mRecorded.put(run, run);
+        mMemorySize += size;
+        return run;
+    }
+
+    /**
+     * 估计一段路径的显示列表占用的内存
+     * 仿制、橡皮擦和图片底色的路径以整张图片作为着色器，显示列表需要引用整张图片，每张图片计算一次
+     */
+    private long estimateMemorySize(OperationLog.Snapshot<GraffitiPath> paths, int start, RenderState state) {
+        long size = RUN_LENGTH * PATH_MEMORY_SIZE;
+        for (int i = 0; i < RUN_LENGTH; i++) {
+            GraffitiPath path = paths.get(start + i);
+            if (path.mPen == GraffitiView.Pen.COPY) {
+                size += countBitmap(state.mBitmap);
+            } else if (path.mPen == GraffitiView.Pen.ERASER) {
+                size += countBitmap(state.mBitmapEraser != null ? state.mBitmapEraser : state.mBitmap);
+            } else if (path.mColor != null && path.mColor.getType() == GraffitiColor.Type.BITMAP) {
+                size += countBitmap(path.mColor.getBitmap());
+            }
+        }
+        mCountedBitmaps.clear();
+        return size;
+    }
+
+    private long countBitmap(Bitmap bitmap) {
+        if (bitmap == null || mCountedBitmaps.contains(bitmap)) {
+            return 0;
+        }
+        mCountedBitmaps.add(bitmap);
+        return (long) bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * 路径记录中只有前pathCount个路径时，丢弃之后的段
+     */
+    void trim(int pathCount) {
+        int count = pathCount / RUN_LENGTH;
+        while (mRuns.size() > count) {
+            release(mRuns.remove(mRuns.size() - 1));
+        }
+    }
+
+    void clear() {
+        mRuns.clear();
+        mRecorded.clear();
+        mMemorySize = 0;
+    }
+
+    private void release(Run run) {
+        if (mRecorded.remove(run) != null) {
+            discard(run);
+        }
+    }
+
+    // 只丢弃显示列表，段本身留在mRuns中，需要时重新录制
+    private void discard(Run run) {
+        mMemorySize -= run.mMemorySize;
+        run.mMemorySize = 0;
+        synchronized (run) {
+            run.mPicture = null;
+            run.mCopies = null;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package cn.hzw.graffiti;
+
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.graphics.Path;
+
+/**
+ * 某一帧需要绘制的全部状态，由主线程创建后交给绘制线程
+ * 交出后双方都不再修改，其中的路径和元素记录都是不可变的快照，路径和矩阵都是复制的。
+ */
+class RenderState {
+
+    GraffitiView mView;
+    Bitmap mBitmap; // 当前涂鸦的原图（旋转后）
+    Bitmap mBitmapEraser;
+    float mPivotX, mPivotY; // 原图中心
+    int mRotateDegree;
+    Matrix mEraserMatrix; // 自定义橡皮擦底图的变化矩阵
+
+    OperationLog.Snapshot<GraffitiPath> mPaths;
+    OperationLog.Snapshot<GraffitiSelectableItem> mItems;
+    GraffitiSelectableItem mSelectedItem;
+    boolean mIsRotatingSelectedItem;
+
+    float mLeft, mTop, mScale; // 图片在View中的偏移和真实的缩放倍数
+    boolean mIsDrawableOutside;
+    boolean mIsJustDrawOriginal;
+    boolean mIsDraft; // 是否以草稿画质绘制：不做抗锯齿和图片过滤
+    long mInkEventTime; // 这一帧中最早一个尚未绘制出来的触摸点的时间（SystemClock.uptimeMillis()），为0时没有
+
+    // 正在绘制的笔画，图片坐标系
+    boolean mIsPainting;
+    GraffitiView.Pen mPen;
+    GraffitiView.Shape mShape;
+    float mPaintSize; // 同时用于仿制的定位器
+    GraffitiColor mColor;
+    Matrix mShaderMatrix;
+    Path mStroke; // 手写的路径
+    Path mPrediction; // 预测的尾部，可以为null
+    float mSx, mSy, mDx, mDy; // 图形的起止点
+
+    // 仿制的定位器，图片坐标系
+    boolean mIsDrawCopyLocation;
+    float mCopyX, mCopyY;
+    boolean mIsCopying;
+
+    // 放大器
+    float mAmplifierScale; // 小于等于0时不绘制放大器
+    float mAmplifierRadius;
+    float mAmplifierStrokeWidth; // 边框的宽度
+    float mAmplifierLeft, mAmplifierTop; // 放大器在View中的位置
+    float mTouchX, mTouchY; // 放大器中心对应的触摸点（View坐标系）
+    float mViewScale; // 在适应屏幕的基础上的缩放倍数
+}
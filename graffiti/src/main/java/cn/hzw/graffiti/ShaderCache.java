@@ -0,0 +1,108 @@
+package cn.hzw.graffiti;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Shader;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cn.forward.androids.utils.ImageUtils;
+
+/**
+ * 画笔底图的缓存
+ * 从资源中选择的画笔底图只解码一次，并缩小到适合平铺的尺寸，静态缓存只保留最近使用的少量资源底图。
+ * 调用者传入的图片不放入静态缓存，其着色器由GraffitiColor自己持有，或由各个绘制对象的{@link Local}缓存。
+ */
+class ShaderCache {
+
+    static final int MAX_BRUSH_SIZE = 512; // 画笔底图的最大边长
+    private static final int MAX_ENTRIES = 8;
+
+    private static class Key {
+        final Bitmap mBitmap;
+        final Shader.TileMode mTileX, mTileY;
+
+        Key(Bitmap bitmap, Shader.TileMode tileX, Shader.TileMode tileY) {
+            mBitmap = bitmap;
+            mTileX = tileX;
+            mTileY = tileY;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return mBitmap == key.mBitmap && mTileX == key.mTileX && mTileY == key.mTileY;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(mBitmap) * 31 + mTileX.hashCode()) * 31 + mTileY.hashCode();
+        }
+    }
+
+    private static final Map<Drawable.ConstantState, Bitmap> sBrushes = new LinkedHashMap<Drawable.ConstantState, Bitmap>(MAX_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Drawable.ConstantState, Bitmap> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private ShaderCache() {
+    }
+
+    /**
+     * 只在一个线程中使用的着色器缓存
+     * GraffitiColor的着色器在绘制时会被修改矩阵，在主线程之外绘制时使用自己的着色器，避免与主线程互相影响
+     * 随绘制对象一起释放，不会长期持有图片
+     */
+    static class Local {
+        private final Map<Key, BitmapShader> mShaders = new LinkedHashMap<Key, BitmapShader>(MAX_ENTRIES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, BitmapShader> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+        BitmapShader obtain(Bitmap bitmap, Shader.TileMode tileX, Shader.TileMode tileY) {
+            Key key = new Key(bitmap, tileX, tileY);
+            BitmapShader shader = mShaders.get(key);
+            if (shader == null) {
+                shader = new BitmapShader(bitmap, tileX, tileY);
+                mShaders.put(key, shader);
+            }
+            return shader;
+        }
+    }
+
+    /**
+     * 获取画笔底图，同一个资源只解码一次，尺寸不超过{@link #MAX_BRUSH_SIZE}
+     */
+    static synchronized Bitmap getBrushBitmap(Drawable drawable) {
+        Drawable.ConstantState state = drawable.getConstantState();
+        Bitmap bitmap = state == null ? null : sBrushes.get(state);
+        if (bitmap != null && !bitmap.isRecycled()) {
+            return bitmap;
+        }
+
+        if (drawable instanceof BitmapDrawable && ((BitmapDrawable) drawable).getBitmap() != null) {
+            bitmap = ((BitmapDrawable) drawable).getBitmap(); // 资源中已解码的图片，直接使用
+        } else {
+            bitmap = ImageUtils.getBitmapFromDrawable(drawable);
+        }
+        int width = bitmap.getWidth(), height = bitmap.getHeight();
+        if (width > MAX_BRUSH_SIZE || height > MAX_BRUSH_SIZE) {
+            float scale = MAX_BRUSH_SIZE * 1f / Math.max(width, height);
+            bitmap = Bitmap.createScaledBitmap(bitmap, Math.max(1, (int) (width * scale)), Math.max(1, (int) (height * scale)), true);
+        }
+        if (state != null) {
+            sBrushes.put(state, bitmap);
+        }
+        return bitmap;
+    }
+}
@@ -0,0 +1,33 @@
+package cn.hzw.graffiti;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.view.View;
+
+/**
+ * 低延迟模式下绘制正在绘制的笔画的覆盖层
+ * 覆盖在GraffitiView之上，位置和大小必须与GraffitiView相同。它不关闭硬件加速，每次只绘制当前笔画，
+ * 触摸点改变后立即刷新，不需要等待GraffitiView重绘原图、图层和元素；手指抬起后笔画合并到涂鸦图层中，覆盖层清空。
+ * 覆盖层不处理触摸事件，事件会传递给下面的GraffitiView。
+ * {@link GraffitiView#setStrokeOverlay(StrokeOverlayView)}
+ */
+public class StrokeOverlayView extends View {
+
+    private GraffitiView mGraffitiView;
+
+    public StrokeOverlayView(Context context) {
+        super(context);
+    }
+
+    void setGraffitiView(GraffitiView graffitiView) {
+        mGraffitiView = graffitiView;
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mGraffitiView != null) {
+            mGraffitiView.drawStrokeOverlay(canvas);
+        }
+    }
+}
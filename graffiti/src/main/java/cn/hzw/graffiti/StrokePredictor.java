@@ -0,0 +1,69 @@
+package cn.hzw.graffiti;
+
+/**
+ * 根据最近的触摸点估算笔画接下来的走向
+ * 用最后三个采样点的速度和加速度外推后面一两个采样点（View坐标系），预测的范围不超过一帧。
+ * 预测的结果只用于临时绘制，真实的触摸点到达后即被替换。
+ */
+class StrokePredictor {
+
+    static final int MAX_POINTS = 2; // 最多预测的点数
+    private static final long MAX_PREDICT_TIME = 16; // 最多预测的时间（毫秒），约一帧
+    private static final float MIN_SPEED = 0.05f; // 低于该速度（像素/毫秒）时认为已停下，不预测
+    private static final float MAX_OVERSHOOT = 1.5f; // 加速度带来的位移最多为匀速时的倍数，避免急停时甩出过长的尾巴
+
+    /**
+     * @param samples 当前笔画的触摸点
+     * @param out     预测的点，依次为x0,y0,x1,y1...，长度至少为MAX_POINTS*2
+     * @return 预测的点数，不能预测时返回0
+     */
+    int predict(StrokeSamples samples, float[] out) {
+        int n = samples.size();
+        if (n < 2) {
+            return 0;
+        }
+        float x2 = samples.getX(n - 1), y2 = samples.getY(n - 1);
+        float x1 = samples.getX(n - 2), y1 = samples.getY(n - 2);
+        long dt1 = samples.getTime(n - 1) - samples.getTime(n - 2);
+        if (dt1 <= 0) {
+            return 0;
+        }
+        float vx = (x2 - x1) / dt1, vy = (y2 - y1) / dt1;
+        float speed = (float) Math.sqrt(vx * vx + vy * vy);
+        if (speed < MIN_SPEED) {
+            return 0;
+        }
+
+        float ax = 0, ay = 0;
+        if (n >= 3) {
+            long dt0 = samples.getTime(n - 2) - samples.getTime(n - 3);
+            if (dt0 > 0) {
+                float vx0 = (x1 - samples.getX(n - 3)) / dt0, vy0 = (y1 - samples.getY(n - 3)) / dt0;
+                float t = (dt0 + dt1) / 2f;
+                ax = (vx - vx0) / t;
+                ay = (vy - vy0) / t;
+            }
+        }
+
+        // 按采样的间隔预测后面的点，总时间不超过一帧
+        long step = Math.min(dt1, MAX_PREDICT_TIME / MAX_POINTS);
+        int count = 0;
+        for (int i = 1; i <= MAX_POINTS; i++) {
+            float t = step * i;
+            if ((vx + ax * t) * vx + (vy + ay * t) * vy <= 0) { // 减速到这时已经停下
+                break;
+            }
+            float dx = vx * t + ax * t * t / 2, dy = vy * t + ay * t * t / 2;
+            float distance = (float) Math.sqrt(dx * dx + dy * dy);
+            float maxDistance = speed * t * MAX_OVERSHOOT;
+            if (distance > maxDistance) {
+                dx = dx * maxDistance / distance;
+                dy = dy * maxDistance / distance;
+            }
+            out[count * 2] = x2 + dx;
+            out[count * 2 + 1] = y2 + dy;
+            count++;
+        }
+        return count;
+    }
+}
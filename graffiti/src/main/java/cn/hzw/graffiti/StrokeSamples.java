@@ -0,0 +1,51 @@
+package cn.hzw.graffiti;
+
+import java.util.Arrays;
+
+/**
+ * 当前笔画的触摸采样点（View坐标系）及其时间
+ * 包括系统合并在同一个事件中的历史采样点，每个笔画开始时清空，数组可重复使用
+ */
+class StrokeSamples {
+
+    private float[] mX = new float[64];
+    private float[] mY = new float[64];
+    private long[] mTime = new long[64];
+    private int mSize;
+
+    void add(float x, float y, long time) {
+        if (mSize == mX.length) {
+            int capacity = mSize * 2;
+            mX = Arrays.copyOf(mX, capacity);
+            mY = Arrays.copyOf(mY, capacity);
+            mTime = Arrays.copyOf(mTime, capacity);
+        }
+        mX[mSize] = x;
+        mY[mSize] = y;
+        mTime[mSize] = time;
+        mSize++;
+    }
+
+    void clear() {
+        mSize = 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    float getX(int index) {
+        return mX[index];
+    }
+
+    float getY(int index) {
+        return mY[index];
+    }
+
+    /**
+     * 采样的时间，与{@link android.view.MotionEvent#getEventTime()}相同，单位为毫秒
+     */
+    long getTime(int index) {
+        return mTime[index];
+    }
+}
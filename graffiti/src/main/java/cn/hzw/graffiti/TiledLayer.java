@@ -0,0 +1,341 @@
+package cn.hzw.graffiti;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * 分块的涂鸦图层
+ * 图层按固定大小切分成透明的图块，只有被涂鸦覆盖到的图块才会分配内存，绘制时叠加在原图之上。
+ * 同时记录自上次清除标记以来被修改过的图块。
+ * 图层可以发布一个只读的副本，副本与图层共享图块，图层修改共享的图块前先复制一份（写时复制），
+ * 因此后台线程可以继续修改图层，而主线程绘制副本。
+ */
+class TiledLayer {
+
+    static final int TILE_SIZE = 256;
+
+    /**
+     * 在图层坐标系中绘制
+     */
+    interface Painter {
+        void paint(Canvas canvas);
+    }
+
+    /**
+     * 图层的快照，只保存已分配的图块
+     */
+    static class Snapshot {
+        private final Bitmap[] mTiles;
+        private final long mMemorySize;
+
+        private Snapshot(Bitmap[] tiles, long memorySize) {
+            mTiles = tiles;
+            mMemorySize = memorySize;
+        }
+
+        long getMemorySize() {
+            return mMemorySize;
+        }
+
+        void recycle() {
+            for (Bitmap tile : mTiles) {
+                if (tile != null) {
+                    tile.recycle();
+                }
+            }
+        }
+    }
+
+    private final int mWidth, mHeight;
+    private final int mColumns, mRows;
+    private final Bitmap[] mTiles; // 未分配的图块为null，表示完全透明
+    private final Canvas[] mCanvases;
+    private final boolean[] mDirty;
+    private final boolean[] mShared; // 与发布的副本共享的图块，修改前需要复制，释放时不能回收
+    private final Paint mSrcPaint;
+    private final Rect mTileRect = new Rect();
+
+    TiledLayer(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mColumns = (width + TILE_SIZE - 1) / TILE_SIZE;
+        mRows = (height + TILE_SIZE - 1) / TILE_SIZE;
+        mTiles = new Bitmap[mColumns * mRows];
+        mCanvases = new Canvas[mTiles.length];
+        mDirty = new boolean[mTiles.length];
+        mShared = new boolean[mTiles.length];
+        mSrcPaint = new Paint();
+        mSrcPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    /**
+     * 发布图层当前内容的只读副本，不复制任何像素
+     * 副本与图层共享全部图块，之后图层修改这些图块前会先复制，副本的内容不会再改变。副本不能修改
+     */
+    TiledLayer publish() {
+        TiledLayer copy = new TiledLayer(mWidth, mHeight);
+        for (int i = 0; i < mTiles.length; i++) {
+            if (mTiles[i] != null) {
+                copy.mTiles[i] = mTiles[i];
+                copy.mShared[i] = true;
+                mShared[i] = true;
+            }
+        }
+        return copy;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    int getTileCount() {
+        return mTiles.length;
+    }
+
+    /**
+     * 图块在图层中的范围
+     */
+    void getTileBounds(int index, Rect bounds) {
+        int left = index % mColumns * TILE_SIZE;
+        int top = index / mColumns * TILE_SIZE;
+        bounds.set(left, top, Math.min(left + TILE_SIZE, mWidth), Math.min(top + TILE_SIZE, mHeight));
+    }
+
+    /**
+     * 图层中的点(x,y)所在的图块
+     */
+    int getTileIndex(int x, int y) {
+        return y / TILE_SIZE * mColumns + x / TILE_SIZE;
+    }
+
+    Bitmap getTile(int index) {
+        return mTiles[index];
+    }
+
+    /**
+     * 在bounds范围内绘制，只会分配和修改与bounds相交的图块
+     *
+     * @param bounds  绘制内容在图层坐标系中的范围
+     * @param painter 在图层坐标系中绘制
+     */
+    void draw(RectF bounds, Painter painter) {
+        if (!bounds.intersects(0, 0, mWidth, mHeight)) {
+            return;
+        }
+        int left = Math.max(0, (int) Math.floor(bounds.left) / TILE_SIZE);
+        int top = Math.max(0, (int) Math.floor(bounds.top) / TILE_SIZE);
+        int right = Math.min(mColumns - 1, (int) Math.ceil(bounds.right) / TILE_SIZE);
+        int bottom = Math.min(mRows - 1, (int) Math.ceil(bounds.bottom) / TILE_SIZE);
+        for (int row = top; row <= bottom; row++) {
+            for (int column = left; column <= right; column++) {
+                int index = row * mColumns + column;
+                Canvas canvas = obtainCanvas(index);
+                canvas.save();
+                canvas.translate(-column * TILE_SIZE, -row * TILE_SIZE);
+                painter.paint(canvas);
+                canvas.restore();
+                mDirty[index] = true;
+            }
+        }
+    }
+
+    /**
+     * bounds是否会绘制到第index个图块中，与{@link #draw(RectF, Painter)}选择图块的方式一致
+     */
+    boolean intersectsTile(RectF bounds, int index) {
+        if (!bounds.intersects(0, 0, mWidth, mHeight)) {
+            return false;
+        }
+        int column = index % mColumns, row = index / mColumns;
+        return (int) Math.floor(bounds.left) / TILE_SIZE <= column && column <= (int) Math.ceil(bounds.right) / TILE_SIZE
+                && (int) Math.floor(bounds.top) / TILE_SIZE <= row && row <= (int) Math.ceil(bounds.bottom) / TILE_SIZE;
+    }
+
+    /**
+     * 在第index个图块中绘制，画布已平移到图层坐标系并裁剪为该图块
+     * 不同的图块可以在不同的线程中同时绘制，同一个图块只能在一个线程中绘制
+     */
+    void drawTile(int index, Painter painter) {
+        Canvas canvas = obtainCanvas(index);
+        canvas.save();
+        canvas.translate(-(index % mColumns) * TILE_SIZE, -(index / mColumns) * TILE_SIZE);
+        painter.paint(canvas);
+        canvas.restore();
+        mDirty[index] = true;
+    }
+
+    /**
+     * 把已分配的图块叠加绘制到canvas上，canvas的坐标系需与图层一致
+     *
+     * @param clip 需要绘制的范围（图层坐标系），为null时绘制全部图块
+     */
+    void drawTo(Canvas canvas, Rect clip, Paint paint) {
+        for (int i = 0; i < mTiles.length; i++) {
+            if (mTiles[i] == null) {
+                continue;
+            }
+            getTileBounds(i, mTileRect);
+            if (clip != null && !Rect.intersects(clip, mTileRect)) {
+                continue;
+            }
+            canvas.drawBitmap(mTiles[i], mTileRect.left, mTileRect.top, paint);
+        }
+    }
+
+    /**
+     * 复制图层中rect范围内的像素
+     *
+     * @return 范围内没有已分配的图块时返回null，表示完全透明
+     */
+    Bitmap copyRegion(Rect rect) {
+        Bitmap region = null;
+        Canvas canvas = null;
+        for (int i = 0; i < mTiles.length; i++) {
+            if (mTiles[i] == null) {
+                continue;
+            }
+            getTileBounds(i, mTileRect);
+            if (!Rect.intersects(rect, mTileRect)) {
+                continue;
+            }
+            if (region == null) {
+                region = Bitmap.createBitmap(rect.width(), rect.height(), Bitmap.Config.ARGB_8888);
+                canvas = new Canvas(region);
+            }
+            canvas.drawBitmap(mTiles[i], mTileRect.left - rect.left, mTileRect.top - rect.top, mSrcPaint);
+        }
+        return region;
+    }
+
+    /**
+     * 用region覆盖图层中rect范围内的像素
+     *
+     * @param region 与rect大小相同，为null时表示把该范围清除为透明
+     */
+    void restoreRegion(Bitmap region, Rect rect) {
+        for (int i = 0; i < mTiles.length; i++) {
+            if (mTiles[i] == null && region == null) { // 未分配的图块本来就是透明的
+                continue;
+            }
+            getTileBounds(i, mTileRect);
+            if (!Rect.intersects(rect, mTileRect)) {
+                continue;
+            }
+            Canvas canvas = obtainCanvas(i);
+            canvas.save();
+            canvas.translate(-mTileRect.left, -mTileRect.top);
+            canvas.clipRect(rect);
+            if (region == null) {
+                canvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            } else {
+                canvas.drawBitmap(region, rect.left, rect.top, mSrcPaint);
+            }
+            canvas.restore();
+            mDirty[i] = true;
+        }
+    }
+
+    Snapshot snapshot() {
+        Bitmap[] tiles = new Bitmap[mTiles.length];
+        long size = 0;
+        try {
+            for (int i = 0; i < mTiles.length; i++) {
+                if (mTiles[i] != null) {
+                    tiles[i] = mTiles[i].copy(Bitmap.Config.ARGB_8888, false);
+                    size += (long) tiles[i].getRowBytes() * tiles[i].getHeight();
+                }
+            }
+        } catch (OutOfMemoryError e) {
+            new Snapshot(tiles, size).recycle();
+            throw e;
+        }
+        return new Snapshot(tiles, size);
+    }
+
+    void restore(Snapshot snapshot) {
+        for (int i = 0; i < mTiles.length; i++) {
+            if (snapshot.mTiles[i] == null) {
+                if (mTiles[i] != null) {
+                    releaseTile(i);
+                }
+            } else {
+                if (mShared[i]) { // 将被完全覆盖，无需复制共享的图块
+                    releaseTile(i);
+                }
+                Canvas canvas = obtainCanvas(i);
+                canvas.drawBitmap(snapshot.mTiles[i], 0, 0, mSrcPaint);
+                mDirty[i] = true;
+            }
+        }
+    }
+
+    /**
+     * 清空图层，释放所有图块
+     */
+    void clear() {
+        for (int i = 0; i < mTiles.length; i++) {
+            if (mTiles[i] != null) {
+                releaseTile(i);
+            }
+        }
+    }
+
+    /**
+     * 已分配的图块占用的内存（byte）
+     */
+    long getMemorySize() {
+        long size = 0;
+        for (Bitmap tile : mTiles) {
+            if (tile != null) {
+                size += (long) tile.getRowBytes() * tile.getHeight();
+            }
+        }
+        return size;
+    }
+
+    boolean isDirty(int index) {
+        return mDirty[index];
+    }
+
+    void clearDirty() {
+        for (int i = 0; i < mDirty.length; i++) {
+            mDirty[i] = false;
+        }
+    }
+
+    private Canvas obtainCanvas(int index) {
+        if (mShared[index]) { // 写时复制
+            mTiles[index] = mTiles[index].copy(Bitmap.Config.ARGB_8888, true);
+            mCanvases[index] = new Canvas(mTiles[index]);
+            mShared[index] = false;
+        } else if (mTiles[index] == null) { // 不使用mTileRect，可以在多个线程中分配不同的图块
+            int left = index % mColumns * TILE_SIZE;
+            int top = index / mColumns * TILE_SIZE;
+            mTiles[index] = Bitmap.createBitmap(Math.min(TILE_SIZE, mWidth - left), Math.min(TILE_SIZE, mHeight - top),
+                    Bitmap.Config.ARGB_8888);
+            mCanvases[index] = new Canvas(mTiles[index]);
+        }
+        return mCanvases[index];
+    }
+
+    private void releaseTile(int index) {
+        if (mShared[index]) { // 副本仍在使用，由GC回收
+            mShared[index] = false;
+        } else {
+            mTiles[index].recycle();
+        }
+        mTiles[index] = null;
+        mCanvases[index] = null;
+        mDirty[index] = true;
+    }
+}
@@ -0,0 +1,156 @@
+package cn.hzw.graffiti;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * 操作记录的快照在之后的追加、撤销、移除和清空后保持不变
+ */
+public class OperationLogTest {
+
+    private static GraffitiPath newPath() {
+        return new GraffitiPath();
+    }
+
+    private static void assertSnapshot(OperationLog.Snapshot<GraffitiPath> snapshot, GraffitiPath... expected) {
+        assertEquals(expected.length, snapshot.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertSame(expected[i], snapshot.get(i));
+        }
+        List<GraffitiPath> iterated = new ArrayList<>();
+        for (GraffitiPath path : snapshot) {
+            iterated.add(path);
+        }
+        assertEquals(snapshot.toList(), iterated);
+    }
+
+    @Test
+    public void appendDoesNotChangeSnapshot() {
+        OperationLog log = new OperationLog();
+        GraffitiPath a = newPath(), b = newPath();
+        log.addPath(a);
+        OperationLog.Snapshot<GraffitiPath> snapshot = log.snapshotPaths();
+        log.addPath(b);
+        assertSnapshot(snapshot, a);
+        assertSnapshot(log.snapshotPaths(), a, b);
+    }
+
+    @Test
+    public void appendAfterUndoDoesNotOverwriteSnapshot() {
+        OperationLog log = new OperationLog();
+        GraffitiPath a = newPath(), b = newPath(), c = newPath();
+        log.addPath(a);
+        log.addPath(b);
+        OperationLog.Snapshot<GraffitiPath> snapshot = log.snapshotPaths();
+        assertSame(b, log.undo());
+        log.addPath(c); // 快照仍在使用b所在的位置
+        assertSnapshot(snapshot, a, b);
+        assertSnapshot(log.snapshotPaths(), a, c);
+    }
+
+    @Test
+    public void removeDoesNotChangeSnapshot() {
+        OperationLog log = new OperationLog();
+        GraffitiPath a = newPath(), b = newPath(), c = newPath();
+        log.addPath(a);
+        log.addPath(b);
+        log.addPath(c);
+        OperationLog.Snapshot<GraffitiPath> snapshot = log.snapshotPaths();
+        assertEquals(1, log.removePath(b));
+        assertEquals(-1, log.removePath(b));
+        assertSnapshot(snapshot, a, b, c);
+        assertSnapshot(log.snapshotPaths(), a, c);
+    }
+
+    @Test
+    public void clearDoesNotChangeSnapshot() {
+        OperationLog log = new OperationLog();
+        GraffitiPath a = newPath();
+        log.addPath(a);
+        OperationLog.Snapshot<GraffitiPath> snapshot = log.snapshotPaths();
+        log.clear();
+        log.addPath(newPath());
+        assertSnapshot(snapshot, a);
+        assertEquals(1, log.size());
+    }
+
+    @Test
+    public void growDoesNotChangeSnapshot() {
+        OperationLog log = new OperationLog();
+        GraffitiPath[] paths = new GraffitiPath[40];
+        for (int i = 0; i < 20; i++) {
+            paths[i] = newPath();
+            log.addPath(paths[i]);
+        }
+        OperationLog.Snapshot<GraffitiPath> snapshot = log.snapshotPaths();
+        for (int i = 20; i < paths.length; i++) { // 超出容量，复制到新数组
+            paths[i] = newPath();
+            log.addPath(paths[i]);
+        }
+        GraffitiPath[] first = new GraffitiPath[20];
+        System.arraycopy(paths, 0, first, 0, first.length);
+        assertSnapshot(snapshot, first);
+        assertSnapshot(log.snapshotPaths(), paths);
+    }
+
+    @Test
+    public void undoEmptyLog() {
+        assertNull(new OperationLog().undo());
+    }
+
+    @Test
+    public void commonPrefixAfterAppend() {
+        OperationLog log = new OperationLog();
+        log.addPath(newPath());
+        log.addPath(newPath());
+        OperationLog.Snapshot<GraffitiPath> before = log.snapshotPaths();
+        log.addPath(newPath());
+        OperationLog.Snapshot<GraffitiPath> after = log.snapshotPaths();
+        assertEquals(2, after.commonPrefix(before));
+        assertEquals(2, before.commonPrefix(after));
+    }
+
+    @Test
+    public void commonPrefixAfterUndoAndAppend() {
+        OperationLog log = new OperationLog();
+        log.addPath(newPath());
+        log.addPath(newPath());
+        log.addPath(newPath());
+        OperationLog.Snapshot<GraffitiPath> before = log.snapshotPaths();
+        log.undo();
+        log.undo();
+        log.addPath(newPath());
+        OperationLog.Snapshot<GraffitiPath> after = log.snapshotPaths();
+        assertEquals(1, after.commonPrefix(before));
+        assertEquals(1, before.commonPrefix(after));
+    }
+
+    @Test
+    public void commonPrefixAfterRemove() {
+        OperationLog log = new OperationLog();
+        GraffitiPath a = newPath(), b = newPath(), c = newPath();
+        log.addPath(a);
+        log.addPath(b);
+        log.addPath(c);
+        OperationLog.Snapshot<GraffitiPath> before = log.snapshotPaths();
+        log.removePath(a);
+        assertEquals(0, log.snapshotPaths().commonPrefix(before));
+    }
+
+    @Test
+    public void undoFollowsOperationOrder() {
+        OperationLog log = new OperationLog();
+        GraffitiPath a = newPath(), b = newPath();
+        log.addPath(a);
+        log.addPath(b);
+        assertSame(b, log.undo());
+        assertSame(a, log.undo());
+        assertEquals(0, log.getPathCount());
+    }
+}